@@ -0,0 +1,166 @@
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class BhaiCharaBatch {
+
+    static class FileResult {
+
+        Path file;
+        List<String> errors;
+        int tokenCount;
+        long nanos;
+
+        FileResult(Path file, List<String> errors, int tokenCount, long nanos) {
+            this.file = file;
+            this.errors = errors;
+            this.tokenCount = tokenCount;
+            this.nanos = nanos;
+        }
+    }
+
+    // Splits the file range in halves so idle workers can steal the other half
+    static class CompileTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        List<Path> files;
+        FileResult[] results;
+        int from;
+        int to;
+
+        CompileTask(List<Path> files, FileResult[] results, int from, int to) {
+            this.files = files;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                results[from] = compileFile(files.get(from));
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new CompileTask(files, results, from, mid), new CompileTask(files, results, mid, to));
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        // --metrics adds a per-phase breakdown of where the time went after the summary
+        boolean metrics = args.length > 0 && args[0].equals("--metrics");
+        if (metrics) {
+            args = Arrays.copyOfRange(args, 1, args.length);
+            CompilerMetrics.enable();
+        }
+        if (args.length < 1) {
+            System.out.println("Usage: java BhaiCharaBatch [--metrics] <directory> [threads]");
+            return;
+        }
+        Path root = Paths.get(args[0]);
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+        List<Path> files = findSources(root);
+        long start = System.nanoTime();
+        FileResult[] results = compileAll(files, threads);
+        long elapsed = System.nanoTime() - start;
+
+        displayDiagnostics(root, results);
+        displaySummary(results, elapsed, threads);
+        if (metrics) {
+            CompilerMetrics.displayMetrics();
+        }
+        if (Arrays.stream(results).anyMatch(r -> !r.errors.isEmpty())) {
+            System.exit(1);
+        }
+    }
+
+    static List<Path> findSources(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            return paths.filter(p -> Files.isRegularFile(p) && p.toString().endsWith(".bhai"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    // Results come back indexed by the sorted file list, so output order never depends on scheduling
+    static FileResult[] compileAll(List<Path> files, int threads) {
+        FileResult[] results = new FileResult[files.size()];
+        if (files.isEmpty()) {
+            return results;
+        }
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.invoke(new CompileTask(files, results, 0, files.size()));
+        } finally {
+            pool.shutdown();
+        }
+        return results;
+    }
+
+    static FileResult compileFile(Path file) {
+        long start = System.nanoTime();
+        try {
+            // Only diagnostics are reported, so stream the file rather than keep its tokens and tree.
+            // Files already compile in parallel, which leaves no spare core for a lexer thread.
+            BhaiCharaParser.CompilationUnit unit = BhaiCharaParser.checkFile(file, false);
+            return new FileResult(file, unit.errors, unit.tokens.size(), System.nanoTime() - start);
+        } catch (IOException e) {
+            List<String> errors = Collections.singletonList("Error: Cannot read file: " + e.getMessage());
+            return new FileResult(file, errors, 0, System.nanoTime() - start);
+        } catch (RuntimeException | StackOverflowError e) {
+            // A compiler bug or a file nested too deeply fails that file alone, not the whole batch
+            List<String> errors = Collections.singletonList("Error: Internal compiler error: " + e);
+            return new FileResult(file, errors, 0, System.nanoTime() - start);
+        }
+    }
+
+    private static void displayDiagnostics(Path root, FileResult[] results) {
+        for (FileResult result : results) {
+            if (result.errors.isEmpty()) {
+                continue;
+            }
+            System.out.println(root.relativize(result.file) + ":");
+            result.errors.forEach(err -> System.out.println("  " + err));
+        }
+    }
+
+    private static void displaySummary(FileResult[] results, long elapsedNanos, int threads) {
+        long[] latencies = new long[results.length];
+        long tokens = 0;
+        int failed = 0;
+        for (int i = 0; i < results.length; i++) {
+            latencies[i] = results[i].nanos;
+            tokens += results[i].tokenCount;
+            failed += results[i].errors.isEmpty() ? 0 : 1;
+        }
+        Arrays.sort(latencies);
+        double seconds = elapsedNanos / 1e9;
+
+        System.out.println("\nBatch Summary:");
+        System.out.println("+----------------------+----------------+");
+        System.out.printf("| %-20s | %-14d |\n", "Threads", threads);
+        System.out.printf("| %-20s | %-14d |\n", "Files", results.length);
+        System.out.printf("| %-20s | %-14d |\n", "Files with errors", failed);
+        System.out.printf("| %-20s | %-14d |\n", "Tokens", tokens);
+        System.out.printf("| %-20s | %-14.3f |\n", "Wall time (s)", seconds);
+        System.out.printf("| %-20s | %-14.1f |\n", "Files/sec", results.length / Math.max(seconds, 1e-9));
+        System.out.printf("| %-20s | %-14.3f |\n", "p50 latency (ms)", percentile(latencies, 0.50) / 1e6);
+        System.out.printf("| %-20s | %-14.3f |\n", "p99 latency (ms)", percentile(latencies, 0.99) / 1e6);
+        System.out.println("+----------------------+----------------+");
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+}
@@ -0,0 +1,532 @@
+
+import java.util.*;
+
+// Incremental checking for editors. The document is kept as a list of segments, one per top-level
+// statement, each running from the statement's first token to the next statement's first token;
+// segment 0 holds whatever comes before the first statement. Segments store their tokens, lines and
+// errors relative to their own start, so an edit never has to shift the rest of the document.
+//
+// An edit is re-lexed and re-parsed in a region that starts at a statement on an earlier line.
+// Lexing looks ahead at most to the end of the line (a string that never closes, a token that
+// might still grow), so the tokens of earlier lines can't change. The lexer is in its initial
+// state at the first token of every statement, so the region is finished once the parser ends a
+// statement exactly at the first token of an unedited segment, which must lex the same as before.
+// If a statement runs past it instead (an unclosed block or comment, an else that now attaches),
+// the region grows until the two streams meet again or the document ends. An edit that leaves a
+// block open thus makes the rest of the document one statement, and until it is closed each
+// keystroke costs about as much as a full compile.
+//
+// Top-level declarations are indexed by name, so when an edit changes what the region declares,
+// only the later statements that use those names are parsed again.
+public class BhaiCharaIncremental {
+
+    private static final long KEY_SPACING = 1L << 20;
+    private static final String[] NO_NAMES = {};
+
+    static class Diagnostic {
+
+        int line;
+        String message;
+
+        Diagnostic(int line, String message) {
+            this.line = line;
+            this.message = message;
+        }
+    }
+
+    static class Segment {
+
+        long order;
+        int length;
+        int newlines;
+        BhaiCharaParser.TokenStream tokens;
+        BhaiCharaParser.Ast ast;
+        int node = -1;
+        int firstToken;
+        int endToken;
+        int firstLine = 1;
+        // Usually empty, and then shared, since a large document has tens of thousands of these
+        List<Diagnostic> lexerErrors = Collections.emptyList();
+        List<Diagnostic> parseErrors = Collections.emptyList();
+        List<BhaiCharaParser.SymbolTableEntry> declarations = Collections.emptyList();
+        String[] names = NO_NAMES;
+    }
+
+    // Answers lookups that reach the top-level scope from the declarations of earlier segments,
+    // and records each name asked for so the segment can be parsed again if it changes
+    private class Lookup implements BhaiCharaParser.SymbolTable.Globals {
+
+        long before;
+        Set<String> names = new HashSet<>();
+
+        Lookup(long before) {
+            this.before = before;
+        }
+
+        @Override
+        public BhaiCharaParser.SymbolTableEntry resolve(String name) {
+            names.add(name);
+            List<Segment> declaring = declarers.get(name);
+            if (declaring == null || declaring.get(0).order >= before) {
+                return null;
+            }
+            for (BhaiCharaParser.SymbolTableEntry entry : declaring.get(0).declarations) {
+                if (entry.name.equals(name)) {
+                    return entry;
+                }
+            }
+            return null;
+        }
+    }
+
+    // Keystrokes replayed by --bench: {name, text to type, line of the document to type it at}.
+    // The last renames TOTAL, which every block of the generated program assigns to.
+    private static final String[][] SCENARIOS = {
+            {"new statement", "bint TMP = V5 * 2;\n", "middle"},
+            {"function body", "T = T + A;\n", "body"},
+            {"backspace", "", "middle"},
+            {"rename global", "X", "total"},
+    };
+
+    private final StringBuilder text = new StringBuilder();
+    private final List<Segment> segments = new ArrayList<>();
+    // Segments whose statement declares a top-level name, in document order
+    private final Map<String, List<Segment>> declarers = new HashMap<>();
+    // Segments whose statement looked a name up at the top level or declared it there
+    private final Map<String, Set<Segment>> referencers = new HashMap<>();
+    // Where the last edit's region began: edits tend to be close together, so the next one
+    // looks for its segment from there instead of from the top of the document
+    private int hintIndex;
+    private int hintStart;
+
+    BhaiCharaIncremental(CharSequence source) {
+        segments.add(new Segment());
+        edit(0, 0, source.toString());
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1 || !args[0].equals("--bench")) {
+            System.out.println("Usage: java BhaiCharaIncremental --bench [lines]");
+            return;
+        }
+        benchmark(args.length > 1 ? Integer.parseInt(args[1]) : 50_000);
+    }
+
+    String text() {
+        return text.toString();
+    }
+
+    int segmentCount() {
+        return segments.size();
+    }
+
+    // Same messages as BhaiCharaParser.compile, in document order rather than lexer errors first
+    List<String> errors() {
+        List<String> result = new ArrayList<>();
+        int line = 1;
+        for (Segment segment : segments) {
+            for (Diagnostic d : segment.lexerErrors) {
+                result.add("Error at line " + (line + d.line) + ": " + d.message);
+            }
+            for (Diagnostic d : segment.parseErrors) {
+                result.add("Error at line " + (line + d.line) + ": " + d.message);
+            }
+            line += segment.newlines;
+        }
+        return result;
+    }
+
+    void edit(int offset, int removedLength, String inserted) {
+        if (offset < 0 || removedLength < 0 || offset + removedLength > text.length()) {
+            throw new IndexOutOfBoundsException("Edit " + offset + "+" + removedLength
+                    + " outside document of length " + text.length());
+        }
+        int index = hintIndex;
+        int start = hintStart;
+        while (index > 0 && start > offset) {
+            start -= segments.get(--index).length;
+        }
+        while (index + 1 < segments.size() && start + segments.get(index).length <= offset) {
+            start += segments.get(index++).length;
+        }
+        // The statement before the edit's looks one token ahead into it, so it is parsed again too
+        int lineStart = text.lastIndexOf("\n", offset - 1) + 1;
+        int first = Math.max(0, index - 1);
+        int regionStart = start - (first < index ? segments.get(first).length : 0);
+        while (first > 0 && regionStart >= lineStart) {
+            regionStart -= segments.get(--first).length;
+        }
+        int last = index;
+        int lastStart = start;
+        while (last + 1 < segments.size() && lastStart + segments.get(last).length <= offset + removedLength) {
+            lastStart += segments.get(last++).length;
+        }
+        int end = last + 1;
+        int endOffset = lastStart + segments.get(last).length;
+
+        text.replace(offset, offset + removedLength, inserted);
+        int delta = inserted.length() - removedLength;
+
+        Lookup lookup = new Lookup(segments.get(first).order);
+        List<Segment> fresh;
+        while (true) {
+            fresh = reparseRegion(first, end, regionStart, endOffset + delta, lookup);
+            if (fresh != null) {
+                break;
+            }
+            int grown = Math.min(segments.size(), end + Math.max(1, end - first));
+            for (; end < grown; end++) {
+                endOffset += segments.get(end).length;
+            }
+        }
+        replace(first, end, fresh);
+        hintIndex = first;
+        hintStart = regionStart;
+    }
+
+    // Re-lexes the text from regionStart, which is the first token of segment first (or the start
+    // of the document), and parses statements until the first token of segment end, which now
+    // starts at resync. Returns null if the parse doesn't come back to that token.
+    private List<Segment> reparseRegion(int first, int end, int regionStart, int resync, Lookup lookup) {
+        boolean toEnd = end == segments.size();
+        int regionEnd = text.length();
+        if (!toEnd) {
+            // On to the end of that token's line: only a block comment can run past a newline, so
+            // nothing before the token is cut short by where the region stops
+            Segment next = segments.get(end);
+            int newline = text.indexOf("\n", resync + next.tokens.length(next.firstToken));
+            regionEnd = newline < 0 ? text.length() : newline + 1;
+        }
+        String source = text.substring(regionStart, regionEnd);
+        BhaiCharaParser parser = BhaiCharaParser.region(source, lookup);
+        BhaiCharaParser.CompilationUnit unit = parser.unit();
+        BhaiCharaParser.TokenStream tokens = unit.tokens;
+        int stop = tokens.size();
+        if (!toEnd) {
+            stop = tokenAt(tokens, resync - regionStart);
+            if (stop < 0) {
+                return null;
+            }
+        }
+
+        List<Segment> fresh = new ArrayList<>();
+        if (first == 0) {
+            Segment head = new Segment();
+            head.tokens = tokens;
+            head.ast = unit.ast;
+            fresh.add(head);
+        }
+        int lexerErrors = parser.lexerErrorTokens().size();
+        while (parser.position() < stop) {
+            Segment segment = new Segment();
+            segment.tokens = tokens;
+            segment.ast = unit.ast;
+            segment.firstToken = parser.position();
+            segment.firstLine = tokens.line(segment.firstToken);
+            lookup.names.clear();
+            int errorsBefore = unit.errors.size();
+            int entriesBefore = unit.symbolTable.entries.size();
+            segment.node = parser.parseStatement();
+            segment.endToken = parser.position();
+            segment.parseErrors = diagnostics(unit.errors, errorsBefore, segment.firstLine);
+            segment.declarations = declarations(unit.symbolTable, entriesBefore, segment);
+            segment.names = lookup.names.toArray(NO_NAMES);
+            fresh.add(segment);
+        }
+        if (parser.position() > stop) {
+            return null;
+        }
+
+        for (int i = 0; i < fresh.size(); i++) {
+            Segment segment = fresh.get(i);
+            int from = segment.endToken > segment.firstToken ? tokens.offsets[segment.firstToken] : 0;
+            int to = i + 1 < fresh.size() ? tokens.offsets[fresh.get(i + 1).firstToken]
+                    : toEnd ? source.length() : resync - regionStart;
+            segment.length = to - from;
+            for (int c = from; c < to; c++) {
+                if (source.charAt(c) == '\n') {
+                    segment.newlines++;
+                }
+            }
+        }
+        // A lexer error belongs to the statement it interrupts, or to the one whose trailing
+        // comments and whitespace it is in; anything past stop is in the next segment, unchanged
+        int owner = 0;
+        for (int i = 0; i < lexerErrors; i++) {
+            int before = parser.lexerErrorTokens().get(i);
+            if (before > stop) {
+                break;
+            }
+            while (owner + 1 < fresh.size() && fresh.get(owner + 1).firstToken < before) {
+                owner++;
+            }
+            Segment segment = fresh.get(owner);
+            if (segment.lexerErrors.isEmpty()) {
+                segment.lexerErrors = new ArrayList<>();
+            }
+            segment.lexerErrors.addAll(diagnostics(unit.errors.subList(i, i + 1), 0, segment.firstLine));
+        }
+        return fresh;
+    }
+
+    // Index of the token starting at offset, or -1 if none does
+    private static int tokenAt(BhaiCharaParser.TokenStream tokens, int offset) {
+        int i = Arrays.binarySearch(tokens.offsets, 0, tokens.size(), offset);
+        return i >= 0 ? i : -1;
+    }
+
+    // Messages come as "Error at line N: ...", with N counted from the start of the region
+    private static List<Diagnostic> diagnostics(List<String> errors, int from, int firstLine) {
+        if (from == errors.size()) {
+            return Collections.emptyList();
+        }
+        List<Diagnostic> result = new ArrayList<>();
+        for (int i = from; i < errors.size(); i++) {
+            String error = errors.get(i);
+            int colon = error.indexOf(':');
+            int line = Integer.parseInt(error.substring("Error at line ".length(), colon));
+            result.add(new Diagnostic(line - firstLine, error.substring(colon + 2)));
+        }
+        return result;
+    }
+
+    private static List<BhaiCharaParser.SymbolTableEntry> declarations(BhaiCharaParser.SymbolTable table, int from,
+            Segment segment) {
+        List<BhaiCharaParser.SymbolTableEntry> result = Collections.emptyList();
+        for (int i = from; i < table.entries.size(); i++) {
+            BhaiCharaParser.SymbolTableEntry entry = table.entries.get(i);
+            if (entry.scope == 0) {
+                if (result.isEmpty()) {
+                    result = new ArrayList<>();
+                }
+                result.add(new BhaiCharaParser.SymbolTableEntry(-1, entry.name, entry.type,
+                        entry.declaredLine - segment.firstLine, 0, null));
+            }
+        }
+        return result;
+    }
+
+    private void replace(int first, int end, List<Segment> fresh) {
+        List<Segment> old = segments.subList(first, end);
+        Map<String, List<String>> before = declaredTypes(old);
+        for (Segment segment : old) {
+            unindex(segment);
+        }
+        old.clear();
+        segments.addAll(first, fresh);
+
+        long low = first > 0 ? segments.get(first - 1).order : -KEY_SPACING;
+        long high = first + fresh.size() < segments.size() ? segments.get(first + fresh.size()).order
+                : low + (fresh.size() + 1) * KEY_SPACING;
+        long gap = (high - low) / (fresh.size() + 1);
+        if (gap == 0) {
+            for (int i = 0; i < segments.size(); i++) {
+                segments.get(i).order = i * KEY_SPACING;
+            }
+        } else {
+            for (int i = 0; i < fresh.size(); i++) {
+                fresh.get(i).order = low + (i + 1) * gap;
+            }
+        }
+        for (Segment segment : fresh) {
+            index(segment);
+        }
+
+        // Statements after the region that use a name whose declarations changed resolve
+        // differently now; in document order, since one may itself become the declaration
+        Map<String, List<String>> after = declaredTypes(fresh);
+        Set<String> changed = new HashSet<>(before.keySet());
+        changed.addAll(after.keySet());
+        changed.removeIf(name -> Objects.equals(before.get(name), after.get(name)));
+        if (changed.isEmpty()) {
+            return;
+        }
+        long regionOrder = fresh.get(fresh.size() - 1).order;
+        Set<Segment> affected = new HashSet<>();
+        for (String name : changed) {
+            for (Segment segment : referencers.getOrDefault(name, Collections.emptySet())) {
+                if (segment.order > regionOrder) {
+                    affected.add(segment);
+                }
+            }
+        }
+        List<Segment> ordered = new ArrayList<>(affected);
+        ordered.sort(Comparator.comparingLong(s -> s.order));
+        for (Segment segment : ordered) {
+            recheck(segment);
+        }
+    }
+
+    private static Map<String, List<String>> declaredTypes(List<Segment> segments) {
+        Map<String, List<String>> types = new HashMap<>();
+        for (Segment segment : segments) {
+            for (BhaiCharaParser.SymbolTableEntry entry : segment.declarations) {
+                types.computeIfAbsent(entry.name, k -> new ArrayList<>()).add(entry.type);
+            }
+        }
+        return types;
+    }
+
+    // Same tokens, so the same statement looking up the same names; only what they resolve to,
+    // and so its errors and whether its own declarations stand, can differ
+    private void recheck(Segment segment) {
+        unindexDeclarations(segment);
+        Lookup lookup = new Lookup(segment.order);
+        BhaiCharaParser parser = BhaiCharaParser.reparse(segment.tokens, segment.firstToken, lookup);
+        segment.node = parser.parseStatement();
+        BhaiCharaParser.CompilationUnit unit = parser.unit();
+        segment.ast = unit.ast;
+        segment.parseErrors = diagnostics(unit.errors, 0, segment.firstLine);
+        segment.declarations = declarations(unit.symbolTable, 0, segment);
+        indexDeclarations(segment);
+    }
+
+    private void index(Segment segment) {
+        indexDeclarations(segment);
+        for (String name : segment.names) {
+            referencers.computeIfAbsent(name, k -> new HashSet<>()).add(segment);
+        }
+    }
+
+    private void indexDeclarations(Segment segment) {
+        for (BhaiCharaParser.SymbolTableEntry entry : segment.declarations) {
+            List<Segment> declaring = declarers.computeIfAbsent(entry.name, k -> new ArrayList<>());
+            int i = 0;
+            while (i < declaring.size() && declaring.get(i).order < segment.order) {
+                i++;
+            }
+            declaring.add(i, segment);
+        }
+    }
+
+    private void unindex(Segment segment) {
+        unindexDeclarations(segment);
+        for (String name : segment.names) {
+            Set<Segment> using = referencers.get(name);
+            using.remove(segment);
+            if (using.isEmpty()) {
+                referencers.remove(name);
+            }
+        }
+    }
+
+    private void unindexDeclarations(Segment segment) {
+        for (BhaiCharaParser.SymbolTableEntry entry : segment.declarations) {
+            List<Segment> declaring = declarers.get(entry.name);
+            declaring.remove(segment);
+            if (declaring.isEmpty()) {
+                declarers.remove(entry.name);
+            }
+        }
+    }
+
+    static String generate(int lines) {
+        StringBuilder program = new StringBuilder("bint TOTAL = 0;\n");
+        for (int i = 0; i * 10 + 1 < lines; i++) {
+            program.append("bint V").append(i).append(" = ").append(i).append(";\n")
+                    .append("chaleye F").append(i).append("(bint A, bint B) {\n")
+                    .append("    bint T = A * B;\n")
+                    .append("    tillWhenBro (T > 0) {\n")
+                    .append("        T = T - 1;\n")
+                    .append("    }\n")
+                    .append("    dekhana(T);\n")
+                    .append("}\n")
+                    .append("bhaiagar (V").append(i).append(" > 3) { dekhana(V").append(i).append("); }")
+                    .append(" bhaiwarna { F").append(i).append("(V").append(i).append(", 2); }\n")
+                    .append("TOTAL = TOTAL + V").append(i).append(";\n");
+        }
+        return program.toString();
+    }
+
+    private static int countLines(CharSequence text) {
+        int lines = 0;
+        for (int i = 0; i < text.length(); i++) {
+            lines += text.charAt(i) == '\n' ? 1 : 0;
+        }
+        return lines;
+    }
+
+    private static void benchmark(int lines) {
+        String program = generate(lines);
+        BhaiCharaIncremental document = null;
+        long build = Long.MAX_VALUE;
+        long full = Long.MAX_VALUE;
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            document = new BhaiCharaIncremental(program);
+            build = Math.min(build, System.nanoTime() - start);
+            start = System.nanoTime();
+            BhaiCharaParser.compile(program);
+            full = Math.min(full, System.nanoTime() - start);
+        }
+
+        System.out.printf("\nIncremental Benchmark (%d lines, %d statements):\n", countLines(program),
+                document.segmentCount() - 1);
+        System.out.println("+----------------+------------+------------+------------+------------+");
+        System.out.println("| Scenario       | Keystrokes | p50 (ms)   | p99 (ms)   | Max (ms)   |");
+        System.out.println("+----------------+------------+------------+------------+------------+");
+        System.out.printf("| %-14s | %-10d | %-10.3f | %-10.3f | %-10.3f |\n", "initial build", 1, build / 1e6,
+                build / 1e6, build / 1e6);
+        System.out.printf("| %-14s | %-10d | %-10.3f | %-10.3f | %-10.3f |\n", "full compile", 1, full / 1e6,
+                full / 1e6, full / 1e6);
+        for (String[] scenario : SCENARIOS) {
+            long[] latencies = null;
+            // The early rounds warm up the JIT; each round undoes its edits afterwards
+            for (int round = 0; round < 10; round++) {
+                latencies = replay(document, scenario, round);
+            }
+            Arrays.sort(latencies);
+            System.out.printf("| %-14s | %-10d | %-10.3f | %-10.3f | %-10.3f |\n", scenario[0], latencies.length,
+                    percentile(latencies, 0.50) / 1e6, percentile(latencies, 0.99) / 1e6,
+                    latencies[latencies.length - 1] / 1e6);
+        }
+        System.out.println("+----------------+------------+------------+------------+------------+");
+    }
+
+    // Types the scenario's text a character at a time at a few places, or deletes a line there
+    // with backspace, then restores the document
+    private static long[] replay(BhaiCharaIncremental document, String[] scenario, int round) {
+        String text = document.text();
+        List<Integer> places = new ArrayList<>();
+        Random random = new Random(round);
+        for (int i = 0; i < 10; i++) {
+            int offset;
+            switch (scenario[2]) {
+                case "body":
+                    offset = text.indexOf("    dekhana(T);", random.nextInt(text.length() - 100));
+                    break;
+                case "total":
+                    offset = text.indexOf("TOTAL") + "TOTAL".length();
+                    break;
+                default:
+                    offset = text.indexOf('\n', random.nextInt(text.length() - 100)) + 1;
+            }
+            places.add(offset);
+        }
+        List<Long> latencies = new ArrayList<>();
+        for (int offset : places) {
+            if (scenario[1].isEmpty()) {
+                int end = text.indexOf('\n', offset) + 1;
+                for (int i = end; i > offset; i--) {
+                    long start = System.nanoTime();
+                    document.edit(i - 1, 1, "");
+                    latencies.add(System.nanoTime() - start);
+                }
+                document.edit(offset, 0, text.substring(offset, end));
+            } else {
+                for (int i = 0; i < scenario[1].length(); i++) {
+                    long start = System.nanoTime();
+                    document.edit(offset + i, 0, scenario[1].substring(i, i + 1));
+                    latencies.add(System.nanoTime() - start);
+                }
+                document.edit(offset, scenario[1].length(), "");
+            }
+        }
+        return latencies.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+}
@@ -0,0 +1,1108 @@
+
+import java.io.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Paths;
+import java.util.*;
+
+public class BhaiCharaJit {
+
+    // Class files are written as version 49 (Java 5) so the JVM falls back to the type-inferring
+    // verifier and no StackMapTable frames have to be computed for branch targets
+    private static final int CLASS_VERSION = 49;
+    private static final String CLASS_NAME = "BhaiCharaProgram";
+    private static final String IO = "BhaiCharaJit$Io";
+    private static final String IO_DESC = "L" + IO + ";";
+    private static final String STRING_DESC = "Ljava/lang/String;";
+
+    // JVM opcodes used by the generator
+    private static final int LCONST_0 = 0x09, LCONST_1 = 0x0a, DCONST_0 = 0x0e, DCONST_1 = 0x0f;
+    private static final int BIPUSH = 0x10, SIPUSH = 0x11, LDC = 0x12, LDC_W = 0x13, LDC2_W = 0x14;
+    private static final int LLOAD = 0x16, DLOAD = 0x18, ALOAD = 0x19, LSTORE = 0x37, DSTORE = 0x39, ASTORE = 0x3a;
+    private static final int LADD = 0x61, DADD = 0x63, LSUB = 0x65, DSUB = 0x67, LMUL = 0x69, DMUL = 0x6b;
+    private static final int DDIV = 0x6f, DREM = 0x73, LNEG = 0x75, DNEG = 0x77;
+    private static final int L2D = 0x8a, LCMP = 0x94, DCMPL = 0x97, DCMPG = 0x98;
+    private static final int IFEQ = 0x99, IFNE = 0x9a, IFLT = 0x9b, IFGE = 0x9c, IFGT = 0x9d, IFLE = 0x9e;
+    private static final int GOTO = 0xa7, RETURN = 0xb1, GETSTATIC = 0xb2, PUTSTATIC = 0xb3;
+    private static final int INVOKEVIRTUAL = 0xb6, INVOKESTATIC = 0xb8, WIDE = 0xc4;
+
+    private static final int ACC_STATIC = 0x0008, ACC_FINAL = 0x0010, ACC_SUPER = 0x0020;
+
+    static class CodeTooLargeException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        CodeTooLargeException(String message) {
+            super(message);
+        }
+    }
+
+    // Runtime services the generated class calls into: buffered output and typed input. Every
+    // generated method takes the Io as its first parameter, so one compiled class can run many times.
+    static class Io {
+
+        BufferedReader in;
+        Writer out;
+        StringBuilder buffer = new StringBuilder();
+
+        Io(BufferedReader in, Writer out) {
+            this.in = in;
+            this.out = out;
+        }
+
+        void print(long value) {
+            buffer.append(value);
+        }
+
+        void print(double value) {
+            buffer.append(value);
+        }
+
+        void print(String value) {
+            buffer.append(value);
+        }
+
+        void printBool(long value) {
+            buffer.append(value != 0);
+        }
+
+        void printChar(long value) {
+            buffer.append((char) value);
+        }
+
+        void println() throws IOException {
+            buffer.append('\n');
+            if (buffer.length() >= 8192) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            out.append(buffer).flush();
+            buffer.setLength(0);
+        }
+
+        long readInt(int line) throws IOException {
+            return BhaiCharaVM.parseInput(BhaiCharaVM.READ_I, readLine(line).trim(), line);
+        }
+
+        double readFloat(int line) throws IOException {
+            return Double.longBitsToDouble(BhaiCharaVM.parseInput(BhaiCharaVM.READ_F, readLine(line).trim(), line));
+        }
+
+        long readBool(int line) throws IOException {
+            return BhaiCharaVM.parseInput(BhaiCharaVM.READ_B, readLine(line).trim(), line);
+        }
+
+        long readChar(int line) throws IOException {
+            return BhaiCharaVM.parseInput(BhaiCharaVM.READ_C, readLine(line).trim(), line);
+        }
+
+        String readString(int line) throws IOException {
+            return readLine(line);
+        }
+
+        private String readLine(int line) throws IOException {
+            flush();
+            String text = in.readLine();
+            if (text == null) {
+                throw new BhaiCharaVM.BhaiRuntimeException(line, "Unexpected end of input");
+            }
+            return text;
+        }
+    }
+
+    // Helpers called from generated code; small enough for HotSpot to inline at the call site
+    static long div(long a, long b, int line) {
+        if (b == 0) {
+            throw new BhaiCharaVM.BhaiRuntimeException(line, "Division by zero");
+        }
+        return a / b;
+    }
+
+    static long rem(long a, long b, int line) {
+        if (b == 0) {
+            throw new BhaiCharaVM.BhaiRuntimeException(line, "Division by zero");
+        }
+        return a % b;
+    }
+
+    static String boolString(long value) {
+        return value != 0 ? "true" : "false";
+    }
+
+    static String charString(long value) {
+        return String.valueOf((char) value);
+    }
+
+    static class CompiledScript {
+
+        MethodHandle entry;
+
+        CompiledScript(MethodHandle entry) {
+            this.entry = entry;
+        }
+
+        void run(BufferedReader in, Writer out) throws IOException {
+            Io io = new Io(in, out);
+            try {
+                entry.invokeExact(io);
+            } catch (BhaiCharaVM.BhaiRuntimeException | IOException e) {
+                io.flush();
+                throw e;
+            } catch (StackOverflowError e) {
+                // No line to report: the overflow surfaces somewhere inside the generated frames
+                io.flush();
+                throw new BhaiCharaVM.BhaiRuntimeException("Stack overflow");
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+            io.flush();
+        }
+    }
+
+    // Deduplicating constant pool; Long and Double entries take two slots as the format requires
+    static class ConstantPool {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        Map<String, Integer> index = new HashMap<>();
+        int count = 1;
+
+        int utf8(String text) {
+            return entry("U" + text, 1, 1, () -> out.writeUTF(text));
+        }
+
+        int classRef(String name) {
+            int nameIndex = utf8(name);
+            return entry("C" + name, 7, 1, () -> out.writeShort(nameIndex));
+        }
+
+        int string(String text) {
+            int textIndex = utf8(text);
+            return entry("S" + text, 8, 1, () -> out.writeShort(textIndex));
+        }
+
+        int integer(int value) {
+            return entry("I" + value, 3, 1, () -> out.writeInt(value));
+        }
+
+        int longValue(long value) {
+            return entry("J" + value, 5, 2, () -> out.writeLong(value));
+        }
+
+        int doubleValue(double value) {
+            long bits = Double.doubleToRawLongBits(value);
+            return entry("D" + bits, 6, 2, () -> out.writeLong(bits));
+        }
+
+        int field(String owner, String name, String descriptor) {
+            return member("F", 9, owner, name, descriptor);
+        }
+
+        int method(String owner, String name, String descriptor) {
+            return member("M", 10, owner, name, descriptor);
+        }
+
+        private int member(String kind, int tag, String owner, String name, String descriptor) {
+            int ownerIndex = classRef(owner);
+            int nameIndex = utf8(name);
+            int typeIndex = utf8(descriptor);
+            int nameAndType = entry("N" + name + " " + descriptor, 12, 1, () -> {
+                out.writeShort(nameIndex);
+                out.writeShort(typeIndex);
+            });
+            return entry(kind + owner + "." + name + descriptor, tag, 1, () -> {
+                out.writeShort(ownerIndex);
+                out.writeShort(nameAndType);
+            });
+        }
+
+        private interface Body {
+            void write() throws IOException;
+        }
+
+        private int entry(String key, int tag, int slots, Body body) {
+            Integer existing = index.get(key);
+            if (existing != null) {
+                return existing;
+            }
+            try {
+                out.writeByte(tag);
+                body.write();
+            } catch (UTFDataFormatException e) {
+                throw new CodeTooLargeException("String constant exceeds 64 KB");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            int slot = count;
+            count += slots;
+            if (count > 0xffff) {
+                throw new CodeTooLargeException("Constant pool overflow");
+            }
+            index.put(key, slot);
+            return slot;
+        }
+    }
+
+    // Bytecode buffer for one method, with forward-patched branch labels and stack depth tracking
+    static class MethodWriter {
+
+        String name;
+        String descriptor;
+        ByteArrayOutputStream code = new ByteArrayOutputStream();
+        int stack;
+        int maxStack;
+        int maxLocals;
+
+        MethodWriter(String name, String descriptor, int firstLocal) {
+            this.name = name;
+            this.descriptor = descriptor;
+            this.maxLocals = firstLocal;
+        }
+
+        int position() {
+            return code.size();
+        }
+
+        void op(int opcode, int stackDelta) {
+            code.write(opcode);
+            adjust(stackDelta);
+        }
+
+        void op1(int opcode, int operand, int stackDelta) {
+            code.write(opcode);
+            code.write(operand);
+            adjust(stackDelta);
+        }
+
+        void op2(int opcode, int operand, int stackDelta) {
+            code.write(opcode);
+            code.write(operand >>> 8);
+            code.write(operand);
+            adjust(stackDelta);
+        }
+
+        void local(int opcode, int slot, int stackDelta) {
+            if (slot > 255) {
+                code.write(WIDE);
+                op2(opcode, slot, stackDelta);
+            } else {
+                op1(opcode, slot, stackDelta);
+            }
+        }
+
+        void adjust(int stackDelta) {
+            stack += stackDelta;
+            maxStack = Math.max(maxStack, stack);
+        }
+
+        int allocate(int width) {
+            int slot = maxLocals;
+            maxLocals += width;
+            if (maxLocals > 0xffff) {
+                throw new CodeTooLargeException("Too many locals in " + name);
+            }
+            return slot;
+        }
+
+        void branch(int opcode, Label target, int stackDelta) {
+            int at = position();
+            op2(opcode, 0, stackDelta);
+            if (target.position >= 0) {
+                patch(at, target.position);
+            } else {
+                target.fixups.add(at);
+            }
+        }
+
+        void mark(Label label) {
+            label.position = position();
+            for (int at : label.fixups) {
+                patch(at, label.position);
+            }
+        }
+
+        private void patch(int at, int target) {
+            int offset = target - at;
+            if (offset != (short) offset) {
+                throw new CodeTooLargeException("Branch offset out of range in " + name);
+            }
+            pending.put(at + 1, offset);
+        }
+
+        // Branch offsets are written when the method is finished, since the buffer is append-only
+        Map<Integer, Integer> pending = new HashMap<>();
+
+        byte[] finish() {
+            byte[] bytes = code.toByteArray();
+            if (bytes.length > 0xffff) {
+                throw new CodeTooLargeException("Method " + name + " exceeds 64 KB");
+            }
+            for (Map.Entry<Integer, Integer> fixup : pending.entrySet()) {
+                bytes[fixup.getKey()] = (byte) (fixup.getValue() >>> 8);
+                bytes[fixup.getKey() + 1] = (byte) (int) fixup.getValue();
+            }
+            return bytes;
+        }
+    }
+
+    static class Label {
+
+        int position = -1;
+        List<Integer> fixups = new ArrayList<>();
+    }
+
+    // Lowers a type-checked unit to one class: a static run(Io) for the top-level statements and
+    // one static method per chaleye. Variables become primitive locals (long for bint, bbool and
+    // bchar, double for bfloat). Globals that a function touches become static fields instead.
+    static class Generator {
+
+        BhaiCharaParser.Ast ast;
+        BhaiCharaParser.TokenStream tokens;
+        List<BhaiCharaParser.SymbolTableEntry> entries;
+        ConstantPool pool = new ConstantPool();
+        List<MethodWriter> methods = new ArrayList<>();
+        List<Integer> fields = new ArrayList<>();
+
+        // Indexed by symbol table entry id
+        BhaiCharaVM.Type[] types;
+        boolean[] global;
+        boolean[] field;
+        int[] slots;
+        int[] functions;
+
+        BhaiCharaVM.Type[] nodeTypes;
+        MethodWriter method;
+        int line;
+
+        Generator(BhaiCharaParser.CompilationUnit unit) {
+            ast = unit.ast;
+            tokens = unit.tokens;
+            entries = unit.symbolTable.entries;
+            int count = entries.size();
+            types = new BhaiCharaVM.Type[count];
+            global = new boolean[count];
+            field = new boolean[count];
+            slots = new int[count];
+            functions = new int[count];
+            for (int i = 0; i < count; i++) {
+                types[i] = BhaiCharaVM.Type.valueOf(entries.get(i).type);
+            }
+            nodeTypes = new BhaiCharaVM.Type[ast.size()];
+        }
+
+        byte[] generate() {
+            findFields(ast.root);
+            method = new MethodWriter("run", "(" + IO_DESC + ")V", 1);
+            methods.add(method);
+            statements(ast.child(ast.root));
+            method.op(RETURN, 0);
+            return write();
+        }
+
+        // Marks declarations outside functions as global, and the globals referenced from inside a
+        // function as fields; everything else stays a local of the method that declares it. Walks
+        // the tree in preorder with an explicit stack, since a long operator chain makes it deep.
+        // Entries are a node, or the sibling to continue with, shifted left past an in-function bit.
+        private void findFields(int root) {
+            int[] stack = new int[64];
+            int top = 0;
+            stack[top++] = ast.child(root) << 1;
+            while (top > 0) {
+                int entry = stack[--top];
+                int node = entry >> 1;
+                if (node < 0) {
+                    continue;
+                }
+                boolean inFunction = (entry & 1) != 0;
+                BhaiCharaParser.NodeKind kind = ast.kind(node);
+                int symbol = ast.symbol(node);
+                if (kind == BhaiCharaParser.NodeKind.VAR_DECL) {
+                    global[symbol] = !inFunction;
+                } else if (inFunction && symbol >= 0 && global[symbol] && !field[symbol]) {
+                    field[symbol] = true;
+                    slots[symbol] = fields.size();
+                    fields.add(symbol);
+                }
+                boolean function = inFunction || kind == BhaiCharaParser.NodeKind.FUNCTION;
+                if (top + 2 > stack.length) {
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                }
+                stack[top++] = ast.next(node) << 1 | (inFunction ? 1 : 0);
+                stack[top++] = ast.child(node) << 1 | (function ? 1 : 0);
+            }
+        }
+
+        private void statements(int node) {
+            for (; node >= 0; node = ast.next(node)) {
+                statement(node);
+            }
+        }
+
+        private void statement(int node) {
+            line = tokens.line(ast.token(node));
+            switch (ast.kind(node)) {
+                case VAR_DECL: {
+                    int symbol = ast.symbol(node);
+                    if (!field[symbol]) {
+                        slots[symbol] = method.allocate(width(types[symbol]));
+                    }
+                    if (ast.child(node) >= 0) {
+                        value(ast.child(node), types[symbol]);
+                    } else {
+                        zero(types[symbol]);
+                    }
+                    store(symbol);
+                    break;
+                }
+                case ASSIGN:
+                    value(ast.child(node), types[ast.symbol(node)]);
+                    store(ast.symbol(node));
+                    break;
+                case IF:
+                    ifChain(node);
+                    break;
+                case LOOP: {
+                    int condition = ast.child(node);
+                    Label top = new Label();
+                    Label end = new Label();
+                    method.mark(top);
+                    branchIfFalse(condition, end);
+                    statement(ast.next(condition));
+                    method.branch(GOTO, top, 0);
+                    method.mark(end);
+                    break;
+                }
+                case BLOCK:
+                    statements(ast.child(node));
+                    break;
+                case PRINT:
+                    for (int arg = ast.child(node); arg >= 0; arg = ast.next(arg)) {
+                        if (arg != ast.child(node)) {
+                            method.local(ALOAD, 0, 1);
+                            ldc(pool.string(" "), 1);
+                            invoke(INVOKEVIRTUAL, IO, "print", "(" + STRING_DESC + ")V");
+                        }
+                        print(arg);
+                    }
+                    method.local(ALOAD, 0, 1);
+                    invoke(INVOKEVIRTUAL, IO, "println", "()V");
+                    break;
+                case INPUT: {
+                    int symbol = ast.symbol(node);
+                    String[] reads = {"readInt", "readFloat", "readBool", "readChar", "readString"};
+                    method.local(ALOAD, 0, 1);
+                    pushInt(line);
+                    invoke(INVOKEVIRTUAL, IO, reads[types[symbol].ordinal()], "(I)" + descriptor(types[symbol]));
+                    store(symbol);
+                    break;
+                }
+                case FUNCTION:
+                    function(node);
+                    break;
+                case CALL:
+                    call(node);
+                    break;
+                default:
+                    throw new IllegalStateException("Cannot compile " + ast.kind(node));
+            }
+        }
+
+        // An else-if chain nests one IF per clause in the else branch of the one before, as in
+        // BhaiCharaVM.Compiler.ifChain, so it is emitted in a loop with one shared end label
+        private void ifChain(int node) {
+            Label end = null;
+            while (true) {
+                int condition = ast.child(node);
+                int body = ast.next(condition);
+                int otherwise = ast.next(body);
+                Label skip = new Label();
+                branchIfFalse(condition, skip);
+                statement(body);
+                if (otherwise < 0) {
+                    method.mark(skip);
+                    break;
+                }
+                if (end == null) {
+                    end = new Label();
+                }
+                method.branch(GOTO, end, 0);
+                method.mark(skip);
+                if (ast.kind(otherwise) != BhaiCharaParser.NodeKind.IF) {
+                    statement(otherwise);
+                    break;
+                }
+                node = otherwise;
+                line = tokens.line(ast.token(node));
+            }
+            if (end != null) {
+                method.mark(end);
+            }
+        }
+
+        private void function(int node) {
+            int symbol = ast.symbol(node);
+            functions[symbol] = node;
+            MethodWriter caller = method;
+            method = new MethodWriter("f" + symbol, functionDescriptor(node), 1);
+            methods.add(method);
+            int child = ast.child(node);
+            for (; ast.kind(child) == BhaiCharaParser.NodeKind.PARAM; child = ast.next(child)) {
+                int param = ast.symbol(child);
+                slots[param] = method.allocate(width(types[param]));
+            }
+            statement(child);
+            method.op(RETURN, 0);
+            method = caller;
+        }
+
+        private String functionDescriptor(int node) {
+            StringBuilder descriptor = new StringBuilder("(").append(IO_DESC);
+            for (int child = ast.child(node); ast.kind(child) == BhaiCharaParser.NodeKind.PARAM; child = ast.next(child)) {
+                descriptor.append(descriptor(types[ast.symbol(child)]));
+            }
+            return descriptor.append(")V").toString();
+        }
+
+        private void call(int node) {
+            int symbol = ast.symbol(node);
+            int function = functions[symbol];
+            method.local(ALOAD, 0, 1);
+            int param = ast.child(function);
+            int popped = 1;
+            for (int arg = ast.child(node); arg >= 0; arg = ast.next(arg), param = ast.next(param)) {
+                BhaiCharaVM.Type type = types[ast.symbol(param)];
+                value(arg, type);
+                popped += width(type);
+            }
+            method.op2(INVOKESTATIC, pool.method(CLASS_NAME, "f" + symbol, functionDescriptor(function)), -popped);
+        }
+
+        private void print(int node) {
+            BhaiCharaVM.Type type = type(node);
+            method.local(ALOAD, 0, 1);
+            expression(node);
+            switch (type) {
+                case FLOAT:
+                    invoke(INVOKEVIRTUAL, IO, "print", "(D)V");
+                    break;
+                case STRING:
+                    invoke(INVOKEVIRTUAL, IO, "print", "(" + STRING_DESC + ")V");
+                    break;
+                case BOOL:
+                    invoke(INVOKEVIRTUAL, IO, "printBool", "(J)V");
+                    break;
+                case CHAR:
+                    invoke(INVOKEVIRTUAL, IO, "printChar", "(J)V");
+                    break;
+                default:
+                    invoke(INVOKEVIRTUAL, IO, "print", "(J)V");
+                    break;
+            }
+        }
+
+        private void store(int symbol) {
+            BhaiCharaVM.Type type = types[symbol];
+            if (field[symbol]) {
+                method.op2(PUTSTATIC, pool.field(CLASS_NAME, "g" + slots[symbol], descriptor(type)), -width(type));
+            } else {
+                int opcode = type == BhaiCharaVM.Type.FLOAT ? DSTORE : type == BhaiCharaVM.Type.STRING ? ASTORE : LSTORE;
+                method.local(opcode, slots[symbol], -width(type));
+            }
+        }
+
+        private void load(int symbol) {
+            BhaiCharaVM.Type type = types[symbol];
+            if (field[symbol]) {
+                method.op2(GETSTATIC, pool.field(CLASS_NAME, "g" + slots[symbol], descriptor(type)), width(type));
+            } else {
+                int opcode = type == BhaiCharaVM.Type.FLOAT ? DLOAD : type == BhaiCharaVM.Type.STRING ? ALOAD : LLOAD;
+                method.local(opcode, slots[symbol], width(type));
+            }
+        }
+
+        private void zero(BhaiCharaVM.Type type) {
+            if (type == BhaiCharaVM.Type.STRING) {
+                ldc(pool.string(""), 1);
+            } else {
+                method.op(type == BhaiCharaVM.Type.FLOAT ? DCONST_0 : LCONST_0, 2);
+            }
+        }
+
+        // Same conversions as the interpreter's compiler; the unit has already been type-checked
+        private void value(int node, BhaiCharaVM.Type target) {
+            if (target == BhaiCharaVM.Type.CHAR && ast.kind(node) == BhaiCharaParser.NodeKind.STRING) {
+                String text = literal(node);
+                if (text.length() == 1) {
+                    pushLong(text.charAt(0));
+                    return;
+                }
+            }
+            BhaiCharaVM.Type type = expression(node);
+            if (type.isIntLike() && target == BhaiCharaVM.Type.FLOAT) {
+                method.op(L2D, 0);
+            }
+        }
+
+        private BhaiCharaVM.Type expression(int node) {
+            BhaiCharaVM.Type type = type(node);
+            switch (ast.kind(node)) {
+                case NUMBER: {
+                    String text = tokens.text(ast.token(node));
+                    if (type == BhaiCharaVM.Type.FLOAT) {
+                        pushDouble(Double.parseDouble(text));
+                    } else {
+                        pushLong(Long.parseLong(text));
+                    }
+                    break;
+                }
+                case STRING:
+                    ldc(pool.string(literal(node)), 1);
+                    break;
+                case NAME:
+                    load(ast.symbol(node));
+                    break;
+                case UNARY: {
+                    BhaiCharaVM.Type operand = expression(ast.child(node));
+                    method.op(operand == BhaiCharaVM.Type.FLOAT ? DNEG : LNEG, 0);
+                    break;
+                }
+                case BINARY:
+                    binary(node);
+                    break;
+                default:
+                    throw new IllegalStateException("Cannot compile " + ast.kind(node));
+            }
+            return type;
+        }
+
+        // A left spine as deep as the operator chain is long, emitted with a loop as in
+        // BhaiCharaVM.Compiler.binary: the bottom operand, then each operator and its right operand
+        private void binary(int node) {
+            int[] spine = leftSpine(node);
+            int count = spine[0];
+            expression(ast.child(spine[count]));
+            for (int i = count; i >= 1; i--) {
+                operator(spine[i]);
+            }
+        }
+
+        // The binary nodes down the left spine from node, as a count followed by the nodes
+        private int[] leftSpine(int node) {
+            int[] spine = new int[8];
+            int count = 0;
+            for (int n = node; ast.kind(n) == BhaiCharaParser.NodeKind.BINARY; n = ast.child(n)) {
+                if (++count == spine.length) {
+                    spine = Arrays.copyOf(spine, spine.length * 2);
+                }
+                spine[count] = n;
+            }
+            spine[0] = count;
+            return spine;
+        }
+
+        // One binary operator whose left operand is already on the stack
+        private void operator(int node) {
+            BhaiCharaVM.Type type = type(node);
+            int left = ast.child(node);
+            int right = ast.next(left);
+            String op = tokens.text(ast.token(node));
+            if (type == BhaiCharaVM.Type.BOOL) {
+                // Comparisons materialize 0 or 1 through the same branches conditions use
+                Label isFalse = new Label();
+                Label end = new Label();
+                compareIfFalse(node, isFalse);
+                method.op(LCONST_1, 2);
+                method.branch(GOTO, end, 0);
+                method.adjust(-2);
+                method.mark(isFalse);
+                method.op(LCONST_0, 2);
+                method.mark(end);
+                return;
+            }
+            if (type == BhaiCharaVM.Type.STRING) {
+                toStringOp(type(left));
+                expression(right);
+                toStringOp(type(right));
+                invoke(INVOKEVIRTUAL, "java/lang/String", "concat", "(" + STRING_DESC + ")" + STRING_DESC);
+                return;
+            }
+            boolean floating = type == BhaiCharaVM.Type.FLOAT;
+            if (floating && type(left) != BhaiCharaVM.Type.FLOAT) {
+                method.op(L2D, 0);
+            }
+            operand(right, floating);
+            if (floating) {
+                switch (op) {
+                    case "+": method.op(DADD, -2); break;
+                    case "-": method.op(DSUB, -2); break;
+                    case "*": method.op(DMUL, -2); break;
+                    case "/": method.op(DDIV, -2); break;
+                    default: method.op(DREM, -2); break;
+                }
+                return;
+            }
+            switch (op) {
+                case "+": method.op(LADD, -2); break;
+                case "-": method.op(LSUB, -2); break;
+                case "*": method.op(LMUL, -2); break;
+                default:
+                    pushInt(line);
+                    invoke(INVOKESTATIC, "BhaiCharaJit", op.equals("/") ? "div" : "rem", "(JJI)J");
+                    break;
+            }
+        }
+
+        private void operand(int node, boolean floating) {
+            BhaiCharaVM.Type type = expression(node);
+            if (floating && type != BhaiCharaVM.Type.FLOAT) {
+                method.op(L2D, 0);
+            }
+        }
+
+        private void toStringOp(BhaiCharaVM.Type type) {
+            switch (type) {
+                case INT:
+                    invoke(INVOKESTATIC, "java/lang/Long", "toString", "(J)" + STRING_DESC);
+                    break;
+                case FLOAT:
+                    invoke(INVOKESTATIC, "java/lang/Double", "toString", "(D)" + STRING_DESC);
+                    break;
+                case BOOL:
+                    invoke(INVOKESTATIC, "BhaiCharaJit", "boolString", "(J)" + STRING_DESC);
+                    break;
+                case CHAR:
+                    invoke(INVOKESTATIC, "BhaiCharaJit", "charString", "(J)" + STRING_DESC);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        // Comparisons branch straight off lcmp/dcmp; NaN goes to the false side, matching the
+        // interpreter's Java comparisons
+        private void branchIfFalse(int node, Label target) {
+            if (ast.kind(node) != BhaiCharaParser.NodeKind.BINARY || type(node) != BhaiCharaVM.Type.BOOL) {
+                expression(node);
+                method.op(LCONST_0, 2);
+                method.op(LCMP, -3);
+                method.branch(IFEQ, target, -1);
+                return;
+            }
+            expression(ast.child(node));
+            compareIfFalse(node, target);
+        }
+
+        // The comparison at node, with its left operand already on the stack
+        private void compareIfFalse(int node, Label target) {
+            int left = ast.child(node);
+            int right = ast.next(left);
+            String op = tokens.text(ast.token(node));
+            if (type(left) == BhaiCharaVM.Type.STRING) {
+                expression(right);
+                invoke(INVOKEVIRTUAL, "java/lang/String", "equals", "(Ljava/lang/Object;)Z");
+                method.branch(op.equals("==") ? IFEQ : IFNE, target, -1);
+                return;
+            }
+            boolean floating = type(left) == BhaiCharaVM.Type.FLOAT || type(right) == BhaiCharaVM.Type.FLOAT;
+            if (floating && type(left) != BhaiCharaVM.Type.FLOAT) {
+                method.op(L2D, 0);
+            }
+            operand(right, floating);
+            switch (op) {
+                case "==": compare(floating, DCMPL, IFNE, target); break;
+                case "!=": compare(floating, DCMPL, IFEQ, target); break;
+                case "<": compare(floating, DCMPG, IFGE, target); break;
+                case "<=": compare(floating, DCMPG, IFGT, target); break;
+                case ">": compare(floating, DCMPL, IFLE, target); break;
+                default: compare(floating, DCMPL, IFLT, target); break;
+            }
+        }
+
+        private void compare(boolean floating, int doubleCompare, int branch, Label target) {
+            method.op(floating ? doubleCompare : LCMP, -3);
+            method.branch(branch, target, -1);
+        }
+
+        private BhaiCharaVM.Type type(int node) {
+            if (nodeTypes[node] != null) {
+                return nodeTypes[node];
+            }
+            BhaiCharaVM.Type type;
+            switch (ast.kind(node)) {
+                case NUMBER:
+                    type = tokens.text(ast.token(node)).indexOf('.') >= 0 ? BhaiCharaVM.Type.FLOAT : BhaiCharaVM.Type.INT;
+                    break;
+                case STRING:
+                    type = BhaiCharaVM.Type.STRING;
+                    break;
+                case NAME:
+                    type = types[ast.symbol(node)];
+                    break;
+                case UNARY:
+                    type = type(ast.child(node)) == BhaiCharaVM.Type.FLOAT ? BhaiCharaVM.Type.FLOAT : BhaiCharaVM.Type.INT;
+                    break;
+                default:
+                    return binaryType(node);
+            }
+            nodeTypes[node] = type;
+            return type;
+        }
+
+        // Types the untyped nodes of a left spine bottom up, with a loop for the same reason
+        // binary() uses one
+        private BhaiCharaVM.Type binaryType(int node) {
+            int[] spine = leftSpine(node);
+            int count = spine[0];
+            while (nodeTypes[spine[count]] != null) {
+                count--;
+            }
+            BhaiCharaVM.Type type = type(ast.child(spine[count]));
+            for (int i = count; i >= 1; i--) {
+                type = binaryType(spine[i], type, type(ast.next(ast.child(spine[i]))));
+                nodeTypes[spine[i]] = type;
+            }
+            return type;
+        }
+
+        private BhaiCharaVM.Type binaryType(int node, BhaiCharaVM.Type left, BhaiCharaVM.Type right) {
+            String op = tokens.text(ast.token(node));
+            if (!"+-*/%".contains(op)) {
+                return BhaiCharaVM.Type.BOOL;
+            }
+            if (left == BhaiCharaVM.Type.STRING || right == BhaiCharaVM.Type.STRING) {
+                return BhaiCharaVM.Type.STRING;
+            }
+            if (left == BhaiCharaVM.Type.FLOAT || right == BhaiCharaVM.Type.FLOAT) {
+                return BhaiCharaVM.Type.FLOAT;
+            }
+            return BhaiCharaVM.Type.INT;
+        }
+
+        private String literal(int node) {
+            String text = tokens.text(ast.token(node));
+            return text.substring(1, text.length() - 1);
+        }
+
+        private void invoke(int opcode, String owner, String name, String descriptor) {
+            int delta = returnWidth(descriptor) - argumentWidth(descriptor) - (opcode == INVOKEVIRTUAL ? 1 : 0);
+            method.op2(opcode, pool.method(owner, name, descriptor), delta);
+        }
+
+        private void pushLong(long value) {
+            if (value == 0 || value == 1) {
+                method.op(value == 0 ? LCONST_0 : LCONST_1, 2);
+            } else {
+                method.op2(LDC2_W, pool.longValue(value), 2);
+            }
+        }
+
+        private void pushDouble(double value) {
+            if (Double.doubleToRawLongBits(value) == 0 || value == 1) {
+                method.op(value == 0 ? DCONST_0 : DCONST_1, 2);
+            } else {
+                method.op2(LDC2_W, pool.doubleValue(value), 2);
+            }
+        }
+
+        private void pushInt(int value) {
+            if (value == (byte) value) {
+                method.op1(BIPUSH, value, 1);
+            } else if (value == (short) value) {
+                method.op2(SIPUSH, value, 1);
+            } else {
+                ldc(pool.integer(value), 1);
+            }
+        }
+
+        private void ldc(int index, int stackDelta) {
+            if (index > 255) {
+                method.op2(LDC_W, index, stackDelta);
+            } else {
+                method.op1(LDC, index, stackDelta);
+            }
+        }
+
+        private byte[] write() {
+            // Everything below references the pool, so fill it before serializing anything
+            int thisClass = pool.classRef(CLASS_NAME);
+            int superClass = pool.classRef("java/lang/Object");
+            int code = pool.utf8("Code");
+            int[][] fieldRefs = new int[fields.size()][];
+            for (int i = 0; i < fields.size(); i++) {
+                fieldRefs[i] = new int[]{pool.utf8("g" + i), pool.utf8(descriptor(types[fields.get(i)]))};
+            }
+            List<byte[]> bodies = new ArrayList<>();
+            int[][] methodRefs = new int[methods.size()][];
+            for (int i = 0; i < methods.size(); i++) {
+                MethodWriter m = methods.get(i);
+                bodies.add(m.finish());
+                methodRefs[i] = new int[]{pool.utf8(m.name), pool.utf8(m.descriptor)};
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeInt(0xCAFEBABE);
+                out.writeShort(0);
+                out.writeShort(CLASS_VERSION);
+                out.writeShort(pool.count);
+                pool.out.flush();
+                pool.bytes.writeTo(out);
+                out.writeShort(ACC_FINAL | ACC_SUPER);
+                out.writeShort(thisClass);
+                out.writeShort(superClass);
+                out.writeShort(0);
+                out.writeShort(fields.size());
+                for (int[] ref : fieldRefs) {
+                    out.writeShort(ACC_STATIC);
+                    out.writeShort(ref[0]);
+                    out.writeShort(ref[1]);
+                    out.writeShort(0);
+                }
+                out.writeShort(methods.size());
+                for (int i = 0; i < methods.size(); i++) {
+                    MethodWriter m = methods.get(i);
+                    byte[] body = bodies.get(i);
+                    out.writeShort(ACC_STATIC);
+                    out.writeShort(methodRefs[i][0]);
+                    out.writeShort(methodRefs[i][1]);
+                    out.writeShort(1);
+                    out.writeShort(code);
+                    out.writeInt(12 + body.length);
+                    out.writeShort(m.maxStack);
+                    out.writeShort(m.maxLocals);
+                    out.writeInt(body.length);
+                    out.write(body);
+                    out.writeShort(0);
+                    out.writeShort(0);
+                }
+                out.writeShort(0);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return bytes.toByteArray();
+        }
+    }
+
+    private static int width(BhaiCharaVM.Type type) {
+        return type == BhaiCharaVM.Type.STRING ? 1 : 2;
+    }
+
+    private static String descriptor(BhaiCharaVM.Type type) {
+        return type == BhaiCharaVM.Type.FLOAT ? "D" : type == BhaiCharaVM.Type.STRING ? STRING_DESC : "J";
+    }
+
+    private static int argumentWidth(String descriptor) {
+        int width = 0;
+        for (int i = 1; descriptor.charAt(i) != ')'; i++) {
+            char c = descriptor.charAt(i);
+            if (c == 'L') {
+                i = descriptor.indexOf(';', i);
+            }
+            width += c == 'J' || c == 'D' ? 2 : 1;
+        }
+        return width;
+    }
+
+    private static int returnWidth(String descriptor) {
+        char c = descriptor.charAt(descriptor.indexOf(')') + 1);
+        return c == 'V' ? 0 : c == 'J' || c == 'D' ? 2 : 1;
+    }
+
+    // The unit must be free of errors, including the type errors BhaiCharaVM.compile reports.
+    // Throws CodeTooLargeException when the program does not fit the class file limits.
+    static CompiledScript compile(BhaiCharaParser.CompilationUnit unit) {
+        byte[] classFile = new Generator(unit).generate();
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(classFile, true);
+            MethodHandle entry = lookup.findStatic(lookup.lookupClass(), "run",
+                    MethodType.methodType(void.class, Io.class));
+            return new CompiledScript(entry);
+        } catch (IllegalAccessException | NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: java BhaiCharaJit <file.bhai>");
+            System.out.println("       java BhaiCharaJit --bench");
+            return;
+        }
+        if (args[0].equals("--bench")) {
+            benchmark();
+            return;
+        }
+        BhaiCharaParser.CompilationUnit unit = BhaiCharaParser.compileFile(Paths.get(args[0]));
+        BhaiCharaVM.Program program = unit.errors.isEmpty() ? BhaiCharaVM.compile(unit) : null;
+        if (!unit.errors.isEmpty()) {
+            unit.errors.forEach(System.err::println);
+            System.exit(1);
+        }
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+        CompiledScript script = null;
+        try {
+            script = compile(unit);
+        } catch (CodeTooLargeException e) {
+            System.err.println("Note: " + e.getMessage() + "; running in the interpreter");
+        } catch (StackOverflowError e) {
+            // Nesting the generator still recurses on; the program is already compiled for the interpreter
+            System.err.println("Note: program nests too deeply to compile; running in the interpreter");
+        }
+        try {
+            if (script != null) {
+                script.run(in, out);
+            } else {
+                BhaiCharaVM.run(program, in, out);
+            }
+        } catch (BhaiCharaVM.BhaiRuntimeException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    // Startup is compile plus the first run; peak is the best of later runs once HotSpot has
+    // compiled the interpreter loop or the generated methods
+    private static void benchmark() throws IOException {
+        System.out.println("\nBackend Benchmark:");
+        System.out.println("+------------+-------------+----------------+----------------+---------------+");
+        System.out.println("| Program    | Mode        | Compile (ms)   | First run (ms) | Peak run (ms) |");
+        System.out.println("+------------+-------------+----------------+----------------+---------------+");
+        for (String[] benchmark : BhaiCharaVM.BENCHMARKS) {
+            BhaiCharaParser.CompilationUnit unit = BhaiCharaParser.compile(benchmark[1]);
+
+            long start = System.nanoTime();
+            BhaiCharaVM.Program program = BhaiCharaVM.compile(unit);
+            long vmCompile = System.nanoTime() - start;
+            long[] vmRuns = new long[5];
+            for (int i = 0; i < vmRuns.length; i++) {
+                start = System.nanoTime();
+                BhaiCharaVM.run(program, new BufferedReader(new StringReader("")), Writer.nullWriter());
+                vmRuns[i] = System.nanoTime() - start;
+            }
+
+            start = System.nanoTime();
+            CompiledScript script = compile(unit);
+            long jitCompile = System.nanoTime() - start;
+            long[] jitRuns = new long[5];
+            for (int i = 0; i < jitRuns.length; i++) {
+                start = System.nanoTime();
+                script.run(new BufferedReader(new StringReader("")), Writer.nullWriter());
+                jitRuns[i] = System.nanoTime() - start;
+            }
+
+            displayRow(benchmark[0], "interpreter", vmCompile, vmRuns);
+            displayRow("", "class file", jitCompile, jitRuns);
+        }
+        System.out.println("+------------+-------------+----------------+----------------+---------------+");
+    }
+
+    private static void displayRow(String name, String mode, long compile, long[] runs) {
+        long peak = Arrays.stream(runs, 1, runs.length).min().orElse(runs[0]);
+        System.out.printf("| %-10s | %-11s | %-14.2f | %-14.1f | %-13.1f |\n", name, mode, compile / 1e6,
+                runs[0] / 1e6, peak / 1e6);
+    }
+}
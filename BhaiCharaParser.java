@@ -1,71 +1,875 @@
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
-import java.util.regex.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 public class BhaiCharaParser {
 
-    private static final Map<String, String> KEYWORDS = new HashMap<>();
-    private static final List<Token> tokens = new ArrayList<>();
-    private static final List<String> errors = new ArrayList<>();
-    private static final SymbolTable symbolTable = new SymbolTable();
-    private static int lineNumber = 1;
+    private static final Map<String, TokenKind> KEYWORDS = new HashMap<>();
+    private static final String[] OPERATORS = {
+        "+", "-", "*", "/", "%", "=", "(", ")", "{", "}", "<", ">", ";", ",", "==", "!=", "<=", ">="
+    };
+    private static final List<TokenKind> RULE_KINDS = new ArrayList<>();
+    private static final RegexToDFA.LexerTable LEXER;
 
     static {
         // Initialize keywords and operators
-        KEYWORDS.put("bhaiagar", "IF");
-        KEYWORDS.put("agarwarna", "ELSE_IF");
-        KEYWORDS.put("bhaiwarna", "ELSE");
-        KEYWORDS.put("tillWhenBro", "LOOP");
-        KEYWORDS.put("dekhana", "PRINT");
-        KEYWORDS.put("inputdo", "INPUT");
-        KEYWORDS.put("bbool", "BOOL_TYPE");
-        KEYWORDS.put("bint", "INT_TYPE");
-        KEYWORDS.put("bfloat", "FLOAT_TYPE");
-        KEYWORDS.put("bchar", "CHAR_TYPE");
-        KEYWORDS.put("jamaIlfaz", "STRING_TYPE");
-        KEYWORDS.put("chaleye", "FUNCTION");
-    }
-
-    static class Token {
+        KEYWORDS.put("bhaiagar", TokenKind.IF);
+        KEYWORDS.put("agarwarna", TokenKind.ELSE_IF);
+        KEYWORDS.put("bhaiwarna", TokenKind.ELSE);
+        KEYWORDS.put("tillWhenBro", TokenKind.LOOP);
+        KEYWORDS.put("dekhana", TokenKind.PRINT);
+        KEYWORDS.put("inputdo", TokenKind.INPUT);
+        KEYWORDS.put("bbool", TokenKind.BOOL_TYPE);
+        KEYWORDS.put("bint", TokenKind.INT_TYPE);
+        KEYWORDS.put("bfloat", TokenKind.FLOAT_TYPE);
+        KEYWORDS.put("bchar", TokenKind.CHAR_TYPE);
+        KEYWORDS.put("jamaIlfaz", TokenKind.STRING_TYPE);
+        KEYWORDS.put("chaleye", TokenKind.FUNCTION);
 
-        String type;
-        String value;
-        int line;
+        // Lexer rules: keywords beat INVALID on equal-length matches, longest match wins otherwise
+        List<RegexToDFA.LexerRule> rules = new ArrayList<>();
+        for (Map.Entry<String, TokenKind> keyword : KEYWORDS.entrySet()) {
+            rules.add(new RegexToDFA.LexerRule(keyword.getKey(), true, 0));
+            RULE_KINDS.add(keyword.getValue());
+        }
+        rules.add(new RegexToDFA.LexerRule("[A-Z][A-Z0-9]*", false, 1));
+        RULE_KINDS.add(TokenKind.IDENTIFIER);
+        rules.add(new RegexToDFA.LexerRule("[0-9]+(\\.[0-9]+)?", false, 1));
+        RULE_KINDS.add(TokenKind.NUMBER);
+        for (String op : OPERATORS) {
+            rules.add(new RegexToDFA.LexerRule(op, true, 1));
+            RULE_KINDS.add(TokenKind.OPERATOR);
+        }
+        rules.add(new RegexToDFA.LexerRule("[a-z][a-z0-9]*", false, 2));
+        RULE_KINDS.add(TokenKind.INVALID);
+        LEXER = RegexToDFA.buildLexer(rules);
+    }
 
-        Token(String type, String value, int line) {
-            this.type = type;
-            this.value = value;
-            this.line = line;
+    // Streaming checks read tokens through a window of this many. The parser looks back at most two
+    // tokens and ahead one, so anything well above that works; each refill takes half the window.
+    private static final int WINDOW = 1024;
+    // Pipelined checks hand tokens over from the lexer thread in chunks, at most QUEUE_CHUNKS queued
+    private static final int CHUNK = 4096;
+    private static final int QUEUE_CHUNKS = 4;
+
+    // Per-compile state; every call to compile() gets its own parser instance
+    private TokenStream tokens;
+    private final List<String> errors = new ArrayList<>();
+    private final SymbolTable symbolTable = new SymbolTable(errors);
+    private Lexer lexer;
+    private Ast ast;
+    private int pos;
+    private int depth;
+
+    // Thrown to unwind a statement that failed to parse; statement() catches it and resynchronizes.
+    // Shared and stackless, so recovering costs no more than the tokens it skips.
+    private static class SyntaxError extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        SyntaxError() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final SyntaxError SYNTAX_ERROR = new SyntaxError();
+
+    // Blocks, parentheses and unary minus nest at most this deep. Each level costs the parser a few
+    // stack frames, and the walks over the finished tree one more, so the limit keeps them all far
+    // from a StackOverflowError.
+    static final int MAX_NESTING = 256;
+
+    enum TokenKind {
+        IF("keyword"), ELSE_IF("keyword"), ELSE("keyword"), LOOP("keyword"),
+        PRINT("keyword"), INPUT("keyword"), FUNCTION("keyword"),
+        BOOL_TYPE("type"), INT_TYPE("type"), FLOAT_TYPE("type"), CHAR_TYPE("type"), STRING_TYPE("type"),
+        IDENTIFIER("identifier"), NUMBER("number"), STRING("string"), OPERATOR("operator"),
+        INVALID("unknown");
+
+        final String displayType;
+        final String typeName;
+
+        TokenKind(String displayType) {
+            this.displayType = displayType;
+            this.typeName = name().endsWith("_TYPE") ? name().substring(0, name().length() - 5) : null;
+        }
+
+        boolean isType() {
+            return typeName != null;
+        }
+
+        // Identifier and keyword text goes through the SymbolPool
+        boolean isWord() {
+            return this == IDENTIFIER || displayType.equals("keyword") || typeName != null;
+        }
+    }
+
+    // Interns identifier and keyword text. A name is hashed and compared straight from the source,
+    // so only the first occurrence of each distinct name allocates a String.
+    static class SymbolPool {
+
+        String[] names = new String[64];
+        int[] hashes = new int[64];
+        int[] table = new int[128];
+        int size;
+
+        SymbolPool() {
+            Arrays.fill(table, -1);
+        }
+
+        int intern(CharSequence source, int offset, int length) {
+            int hash = 0;
+            for (int i = 0; i < length; i++) {
+                hash = 31 * hash + source.charAt(offset + i);
+            }
+            int mask = table.length - 1;
+            for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+                int id = table[slot];
+                if (id < 0) {
+                    id = add(source.subSequence(offset, offset + length).toString(), hash);
+                    table[slot] = id;
+                    if (size * 2 > table.length) {
+                        rehash();
+                    }
+                    return id;
+                }
+                if (hashes[id] == hash && sameText(names[id], source, offset, length)) {
+                    return id;
+                }
+            }
+        }
+
+        String name(int id) {
+            return names[id];
+        }
+
+        private int add(String name, int hash) {
+            if (size == names.length) {
+                names = Arrays.copyOf(names, size * 2);
+                hashes = Arrays.copyOf(hashes, size * 2);
+            }
+            names[size] = name;
+            hashes[size] = hash;
+            return size++;
+        }
+
+        private void rehash() {
+            table = new int[table.length * 2];
+            Arrays.fill(table, -1);
+            int mask = table.length - 1;
+            for (int id = 0; id < size; id++) {
+                int slot = hashes[id] & mask;
+                while (table[slot] >= 0) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = id;
+            }
+        }
+
+        private static boolean sameText(String name, CharSequence source, int offset, int length) {
+            if (name.length() != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (name.charAt(i) != source.charAt(offset + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // Supplies a streaming TokenStream: fill adds the next batch of tokens, or returns false once
+    // there are none left
+    interface TokenSource {
+        boolean fill(TokenStream into);
+    }
+
+    // Tokens packed into parallel int arrays instead of one object per token. Text is sliced from
+    // the source on demand, except for identifiers and keywords which resolve through the pool.
+    //
+    // Indices are absolute and the arrays are used as a ring. Normally the ring grows and keeps
+    // every token; with an upstream source it stays at its capacity, has() pulls more tokens as the
+    // parser reaches the end, and only the most recent capacity tokens can be read.
+    static class TokenStream {
+
+        private static final TokenKind[] KINDS = TokenKind.values();
+
+        CharSequence source;
+        SymbolPool symbols;
+        TokenSource upstream;
+        int size;
+        int mask;
+        int[] kinds;
+        int[] offsets;
+        int[] lengths;
+        int[] lines;
+        int[] symbolIds;
+
+        TokenStream(CharSequence source, SymbolPool symbols) {
+            this(source, symbols, 256);
+        }
+
+        TokenStream(CharSequence source, SymbolPool symbols, int capacity) {
+            capacity = Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1;
+            this.source = source;
+            this.symbols = symbols;
+            mask = capacity - 1;
+            kinds = new int[capacity];
+            offsets = new int[capacity];
+            lengths = new int[capacity];
+            lines = new int[capacity];
+            symbolIds = new int[capacity];
+        }
+
+        // Words are interned here, so a chunk filled without a pool leaves that to whoever copies it
+        void add(TokenKind kind, int offset, int length, int line) {
+            if (size == kinds.length && upstream == null) {
+                int capacity = size * 2;
+                kinds = Arrays.copyOf(kinds, capacity);
+                offsets = Arrays.copyOf(offsets, capacity);
+                lengths = Arrays.copyOf(lengths, capacity);
+                lines = Arrays.copyOf(lines, capacity);
+                symbolIds = Arrays.copyOf(symbolIds, capacity);
+                mask = capacity - 1;
+            }
+            int slot = size & mask;
+            kinds[slot] = kind.ordinal();
+            offsets[slot] = offset;
+            lengths[slot] = length;
+            lines[slot] = line;
+            symbolIds[slot] = kind.isWord() && symbols != null ? symbols.intern(source, offset, length) : -1;
+            size++;
+        }
+
+        // Tokens added so far; with an upstream source, more may follow
+        int size() {
+            return size;
+        }
+
+        boolean has(int i) {
+            while (i >= size) {
+                if (upstream == null || !upstream.fill(this)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        TokenKind kind(int i) {
+            return KINDS[kinds[i & mask]];
+        }
+
+        int line(int i) {
+            return lines[i & mask];
+        }
+
+        boolean is(int i, char c) {
+            return has(i) && lengths[i & mask] == 1 && source.charAt(offsets[i & mask]) == c;
+        }
+
+        int length(int i) {
+            return lengths[i & mask];
+        }
+
+        char firstChar(int i) {
+            return source.charAt(offsets[i & mask]);
+        }
+
+        String text(int i) {
+            int slot = i & mask;
+            if (symbolIds[slot] >= 0) {
+                return symbols.name(symbolIds[slot]);
+            }
+            return source.subSequence(offsets[slot], offsets[slot] + lengths[slot]).toString();
+        }
+    }
+
+    // Read-only char view over the bytes of a mapped file. The lexer only looks at ASCII, so any
+    // non-ASCII byte reads as U+FFFD; token text is decoded as UTF-8 when it is materialized.
+    static class ByteSource implements CharSequence {
+
+        ByteBuffer bytes;
+        int from;
+        int to;
+
+        ByteSource(ByteBuffer bytes, int from, int to) {
+            this.bytes = bytes;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public int length() {
+            return to - from;
+        }
+
+        @Override
+        public char charAt(int index) {
+            byte b = bytes.get(from + index);
+            return b >= 0 ? (char) b : '\uFFFD';
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new ByteSource(bytes, from + start, from + end);
+        }
+
+        @Override
+        public String toString() {
+            byte[] text = new byte[to - from];
+            bytes.get(from, text);
+            return new String(text, StandardCharsets.UTF_8);
+        }
+    }
+
+    // Resumable lexer: next(count) scans until count more tokens have been added to out or the input
+    // ends, so compile() can lex everything up front and check() only as far as the parser has read
+    static class Lexer {
+
+        CharSequence input;
+        List<String> errors;
+        // Tokens produced before each error, which places the error in the token stream
+        List<Integer> errorTokens = new ArrayList<>();
+        TokenStream out;
+        int pos;
+        int lineNumber = 1;
+        int produced;
+        private int matchedRule = -1;
+
+        Lexer(CharSequence input, List<String> errors) {
+            this.input = input;
+            this.errors = errors;
+        }
+
+        // Returns the number of tokens added, 0 once the input is exhausted
+        int next(int count) {
+            CharSequence input = this.input;
+            int length = input.length();
+            int pos = this.pos;
+            int before = produced;
+            int limit = produced + Math.min(count, Integer.MAX_VALUE - produced);
+
+            while (pos < length && produced < limit) {
+                char c = input.charAt(pos);
+                int start = pos;
+
+                if (c == '\n') {
+                    lineNumber++;
+                    pos++;
+                } else if (c == '?' && pos + 1 < length && input.charAt(pos + 1) == '?') {
+                    pos = skipLineComment(input, pos + 2);
+                } else if (c == '<' && pos + 1 < length && input.charAt(pos + 1) == '<') {
+                    pos = skipBlockComment(input, pos + 2);
+                } else if (c == '"' && (pos = scanString(input, start)) > start) {
+                    out.add(TokenKind.STRING, start, pos - start, lineNumber);
+                    produced++;
+                } else if ((pos = scanTable(input, start)) > start) {
+                    TokenKind kind = RULE_KINDS.get(matchedRule);
+                    if (kind == TokenKind.INVALID) {
+                        error(lineNumber, "Invalid identifier '" + input.subSequence(start, pos)
+                                + "'. Must start with capital letter.");
+                    } else {
+                        out.add(kind, start, pos - start, lineNumber);
+                        produced++;
+                    }
+                } else {
+                    pos = start + 1;
+                }
+            }
+            this.pos = pos;
+            return produced - before;
+        }
+
+        private void error(int line, String message) {
+            errorTokens.add(produced);
+            errors.add("Error at line " + line + ": " + message);
+        }
+
+        private static int skipLineComment(CharSequence input, int pos) {
+            while (pos < input.length() && !isLineTerminator(input.charAt(pos))) {
+                pos++;
+            }
+            return pos;
+        }
+
+        private int skipBlockComment(CharSequence input, int pos) {
+            int openedAt = lineNumber;
+            for (int i = pos; i < input.length(); i++) {
+                char c = input.charAt(i);
+                if (c == '>' && i + 1 < input.length() && input.charAt(i + 1) == '>') {
+                    return i + 2;
+                }
+                if (c == '\n') {
+                    lineNumber++;
+                }
+            }
+            error(openedAt, "Unclosed comment '<<'");
+            return input.length();
+        }
+
+        private int scanTable(CharSequence input, int pos) {
+            int[] transitions = LEXER.transitions;
+            int[] classMap = LEXER.classMap;
+            int numClasses = LEXER.numClasses;
+            int state = LEXER.start;
+            int end = pos;
+            matchedRule = -1;
+
+            for (int i = pos; i < input.length(); i++) {
+                char c = input.charAt(i);
+                state = transitions[state * numClasses + (c < classMap.length ? classMap[c] : 0)];
+                if (state < 0) {
+                    break;
+                }
+                if (LEXER.acceptRule[state] >= 0) {
+                    matchedRule = LEXER.acceptRule[state];
+                    end = i + 1;
+                }
+            }
+            return end;
+        }
+
+        private static int scanString(CharSequence input, int pos) {
+            for (int i = pos + 1; i < input.length(); i++) {
+                char c = input.charAt(i);
+                if (c == '"') {
+                    return i + 1;
+                }
+                if (c == '\n') {
+                    break;
+                }
+            }
+            return pos;
+        }
+
+        private static boolean isLineTerminator(char c) {
+            return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+        }
+    }
+
+    // Runs a lexer on its own thread and hands its tokens to the parser through a bounded queue of
+    // chunks. Chunks are recycled, so the lexer stays at most QUEUE_CHUNKS chunks ahead.
+    private static class Pipeline implements TokenSource {
+
+        private static final TokenStream END = new TokenStream("", null, 16);
+
+        final BlockingQueue<TokenStream> full = new ArrayBlockingQueue<>(QUEUE_CHUNKS + 2);
+        final BlockingQueue<TokenStream> free = new ArrayBlockingQueue<>(QUEUE_CHUNKS + 2);
+        final Lexer lexer;
+        final Thread thread;
+        volatile Throwable failure;
+        TokenStream chunk;
+        int next;
+
+        Pipeline(Lexer lexer) {
+            this.lexer = lexer;
+            for (int i = 0; i <= QUEUE_CHUNKS; i++) {
+                free.add(new TokenStream(lexer.input, null, CHUNK));
+            }
+            thread = new Thread(this::run, "bhaichara-lexer");
+            thread.setDaemon(true);
+        }
+
+        private void run() {
+            try {
+                while (true) {
+                    TokenStream out = free.take();
+                    out.size = 0;
+                    lexer.out = out;
+                    if (lexer.next(CHUNK) == 0) {
+                        full.put(END);
+                        return;
+                    }
+                    full.put(out);
+                }
+            } catch (InterruptedException e) {
+                // The parser gave up on the input
+            } catch (RuntimeException | Error e) {
+                failure = e;
+                full.offer(END);
+            }
+        }
+
+        // Copies at most half the window, so the tokens the parser may still look back at survive
+        @Override
+        public boolean fill(TokenStream into) {
+            try {
+                if (chunk == null) {
+                    chunk = full.take();
+                    next = 0;
+                }
+                if (chunk == END) {
+                    if (failure != null) {
+                        throw new IllegalStateException("Lexer failed", failure);
+                    }
+                    return false;
+                }
+                int end = Math.min(chunk.size, next + WINDOW / 2);
+                for (int i = next; i < end; i++) {
+                    into.add(chunk.kind(i), chunk.offsets[i], chunk.lengths[i], chunk.lines[i]);
+                }
+                next = end;
+                if (next == chunk.size) {
+                    free.put(chunk);
+                    chunk = null;
+                }
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for tokens", e);
+            }
         }
     }
 
     static class SymbolTableEntry {
 
+        int id;
         String name;
         String type;
         int declaredLine;
+        int scope;
+        SymbolTableEntry shadowed;
 
-        SymbolTableEntry(String name, String type, int line) {
+        SymbolTableEntry(int id, String name, String type, int line, int scope, SymbolTableEntry shadowed) {
+            this.id = id;
             this.name = name;
             this.type = type;
             this.declaredLine = line;
+            this.scope = scope;
+            this.shadowed = shadowed;
         }
     }
 
+    // Scoped symbol table. Names come from the unit's SymbolPool, so each distinct name is a single
+    // String instance and lookups hash and compare by identity. visible maps a name to its innermost
+    // declaration, which links to the one it shadows; exitScope unwinds the declarations made in
+    // the scope being closed, so declare, resolve and exit are all O(1) amortized.
     static class SymbolTable {
 
+        // Top-level names declared outside this unit, when it is one region of a larger document.
+        // Consulted for every lookup that reaches the top-level scope, so the implementation also
+        // learns which outside names the region depends on.
+        interface Globals {
+            SymbolTableEntry resolve(String name);
+        }
+
         List<SymbolTableEntry> entries = new ArrayList<>();
+        List<String> errors;
+        Globals globals;
+        // Cleared by check(), which has no tree to resolve against: entries then leave the table with
+        // their scope and only top-level ones stay in entries
+        boolean keepLocals = true;
+        int count;
+        // Set during a parse with metrics on: declarations and lookups then count toward SYMBOL_TABLE
+        CompilerMetrics.Span span;
+        long lookups;
+        Map<String, SymbolTableEntry> visible = new IdentityHashMap<>();
+        List<SymbolTableEntry> scopeLog = new ArrayList<>();
+        int[] scopeStart = new int[16];
+        int depth;
+
+        SymbolTable(List<String> errors) {
+            this.errors = errors;
+        }
+
+        void enterScope() {
+            if (++depth == scopeStart.length) {
+                scopeStart = Arrays.copyOf(scopeStart, depth * 2);
+            }
+            scopeStart[depth] = scopeLog.size();
+        }
+
+        void exitScope() {
+            for (int i = scopeLog.size() - 1; i >= scopeStart[depth]; i--) {
+                SymbolTableEntry entry = scopeLog.remove(i);
+                if (entry.shadowed != null) {
+                    visible.put(entry.name, entry.shadowed);
+                } else {
+                    visible.remove(entry.name);
+                }
+            }
+            depth--;
+        }
 
-        void addEntry(String name, String type, int line) {
-            if (exists(name)) {
+        // Returns the new entry, or the existing one on a redeclaration so later uses still resolve
+        SymbolTableEntry addEntry(String name, String type, int line) {
+            if (span == null) {
+                return declare(name, type, line);
+            }
+            span.resume();
+            SymbolTableEntry entry = declare(name, type, line);
+            span.pause();
+            return entry;
+        }
+
+        private SymbolTableEntry declare(String name, String type, int line) {
+            SymbolTableEntry current = visible.get(name);
+            if (depth == 0 && globals != null) {
+                SymbolTableEntry outer = globals.resolve(name);
+                current = current != null ? current : outer;
+            }
+            if (current != null && current.scope == depth) {
                 errors.add("Error at line " + line + ": Redeclaration of variable '" + name + "'");
-                return;
+                return current;
             }
-            entries.add(new SymbolTableEntry(name, type, line));
+            SymbolTableEntry entry = new SymbolTableEntry(count++, name, type, line, depth, current);
+            if (depth == 0 || keepLocals) {
+                entries.add(entry);
+            }
+            scopeLog.add(entry);
+            visible.put(name, entry);
+            return entry;
+        }
+
+        SymbolTableEntry resolve(String name) {
+            if (span == null) {
+                return lookup(name);
+            }
+            span.resume();
+            lookups++;
+            SymbolTableEntry entry = lookup(name);
+            span.pause();
+            return entry;
+        }
+
+        private SymbolTableEntry lookup(String name) {
+            SymbolTableEntry entry = visible.get(name);
+            if (globals != null && (entry == null || entry.scope == 0)) {
+                SymbolTableEntry outer = globals.resolve(name);
+                return entry != null ? entry : outer;
+            }
+            return entry;
         }
 
         boolean exists(String name) {
-            return entries.stream().anyMatch(e -> e.name.equals(name));
+            return visible.containsKey(name);
+        }
+    }
+
+    enum NodeKind {
+        PROGRAM, BLOCK, VAR_DECL, ASSIGN, IF, LOOP, PRINT, INPUT, FUNCTION, PARAM, CALL,
+        BINARY, UNARY, NAME, NUMBER, STRING, ERROR
+    }
+
+    // AST packed like the token stream, one slot per node in parallel int arrays. Children are
+    // linked first-child/next-sibling and are always added before their parent. Each node keeps
+    // its token and, for names, the id of the symbol table entry it resolved to (-1 if none).
+    //
+    //   PROGRAM, BLOCK   statements
+    //   VAR_DECL         token = name; optional initializer
+    //   ASSIGN           token = name; value
+    //   IF               token = keyword; condition, BLOCK, optional else (IF or BLOCK)
+    //   LOOP             token = keyword; condition, BLOCK
+    //   PRINT            token = keyword; arguments
+    //   INPUT            token = name
+    //   FUNCTION         token = name; PARAM..., BLOCK
+    //   PARAM            token = name
+    //   CALL             token = name; arguments
+    //   BINARY, UNARY    token = operator; operands
+    //   NAME, NUMBER, STRING, ERROR   token only
+    static class Ast {
+
+        private static final NodeKind[] KINDS = NodeKind.values();
+
+        int size;
+        int root = -1;
+        int[] kinds;
+        int[] tokens;
+        int[] firstChild;
+        int[] nextSibling;
+        int[] symbols;
+
+        Ast() {
+            this(256);
+        }
+
+        Ast(int capacity) {
+            kinds = new int[capacity];
+            tokens = new int[capacity];
+            firstChild = new int[capacity];
+            nextSibling = new int[capacity];
+            symbols = new int[capacity];
+        }
+
+        int add(NodeKind kind, int token, int child, int symbol) {
+            if (size == kinds.length) {
+                int capacity = size * 2;
+                kinds = Arrays.copyOf(kinds, capacity);
+                tokens = Arrays.copyOf(tokens, capacity);
+                firstChild = Arrays.copyOf(firstChild, capacity);
+                nextSibling = Arrays.copyOf(nextSibling, capacity);
+                symbols = Arrays.copyOf(symbols, capacity);
+            }
+            kinds[size] = kind.ordinal();
+            tokens[size] = token;
+            firstChild[size] = child;
+            nextSibling[size] = -1;
+            symbols[size] = symbol;
+            return size++;
+        }
+
+        // A method rather than a direct store: the sibling is often built by the call in the
+        // argument, and that call may reallocate nextSibling
+        void link(int node, int sibling) {
+            nextSibling[node] = sibling;
+        }
+
+        int size() {
+            return size;
+        }
+
+        NodeKind kind(int node) {
+            return KINDS[kinds[node]];
+        }
+
+        int token(int node) {
+            return tokens[node];
+        }
+
+        int child(int node) {
+            return firstChild[node];
+        }
+
+        int next(int node) {
+            return nextSibling[node];
+        }
+
+        int symbol(int node) {
+            return symbols[node];
+        }
+    }
+
+    static class CompilationUnit {
+
+        TokenStream tokens;
+        Ast ast;
+        List<String> errors;
+        SymbolTable symbolTable;
+
+        CompilationUnit(TokenStream tokens, Ast ast, List<String> errors, SymbolTable symbolTable) {
+            this.tokens = tokens;
+            this.ast = ast;
+            this.errors = errors;
+            this.symbolTable = symbolTable;
+        }
+    }
+
+    static CompilationUnit compile(CharSequence source) {
+        BhaiCharaParser parser = new BhaiCharaParser();
+        parser.tokens = new TokenStream(source, new SymbolPool());
+        parser.tokenize(source);
+        parser.parse();
+        return new CompilationUnit(parser.tokens, parser.ast, parser.errors, parser.symbolTable);
+    }
+
+    // Reports the same errors as compile() without keeping the input's tokens or tree: the parser
+    // pulls tokens through a WINDOW-sized ring and drops each top-level statement's nodes once it
+    // has been checked, so memory depends on the longest statement and the number of declared
+    // names rather than on the file size. Pipelined, the lexer runs ahead on a second thread.
+    // The returned unit has no tree, and its tokens only reach back one window.
+    static CompilationUnit check(CharSequence source, boolean pipelined) {
+        BhaiCharaParser parser = new BhaiCharaParser();
+        List<String> lexerErrors = new ArrayList<>();
+        Lexer lexer = new Lexer(source, lexerErrors);
+        TokenStream tokens = new TokenStream(source, new SymbolPool(), WINDOW);
+        parser.tokens = tokens;
+        parser.lexer = lexer;
+        parser.symbolTable.keepLocals = false;
+        if (pipelined) {
+            Pipeline pipeline = new Pipeline(lexer);
+            tokens.upstream = pipeline;
+            pipeline.thread.start();
+            try {
+                parser.parseStreaming();
+            } finally {
+                pipeline.thread.interrupt();
+            }
+        } else {
+            lexer.out = tokens;
+            tokens.upstream = into -> lexer.next(WINDOW / 2) > 0;
+            parser.parseStreaming();
+        }
+        // Lexer errors lead the list, as they do after compile()
+        List<String> errors = new ArrayList<>(lexerErrors);
+        errors.addAll(parser.errors);
+        return new CompilationUnit(tokens, null, errors, parser.symbolTable);
+    }
+
+    static CompilationUnit checkFile(Path file, boolean pipelined) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return check(new ByteSource(bytes, 0, bytes.limit()), pipelined);
+        }
+    }
+
+    // The two phases of compile() on their own, for the benchmarks: lex() keeps only the tokens and
+    // parseTokens() parses tokens lexed beforehand. The parser never writes to the token stream, so
+    // one stream can be parsed any number of times.
+    static TokenStream lex(CharSequence source) {
+        BhaiCharaParser parser = new BhaiCharaParser();
+        parser.tokens = new TokenStream(source, new SymbolPool());
+        parser.tokenize(source);
+        return parser.tokens;
+    }
+
+    static CompilationUnit parseTokens(TokenStream tokens) {
+        BhaiCharaParser parser = new BhaiCharaParser();
+        parser.tokens = tokens;
+        parser.parse();
+        return parser.unit();
+    }
+
+    // Entry points for BhaiCharaIncremental, which parses a document one region at a time. A region
+    // is lexed on its own, with lines counted from 1, and its statements are then parsed one by one
+    // with parseStatement(); names declared before the region are looked up through globals.
+    static BhaiCharaParser region(CharSequence source, SymbolTable.Globals globals) {
+        // Regions are usually a few lines, so size the arrays for one token per four characters
+        int capacity = Math.max(16, source.length() / 4);
+        BhaiCharaParser parser = new BhaiCharaParser();
+        parser.tokens = new TokenStream(source, new SymbolPool(), capacity);
+        parser.tokenize(source);
+        parser.ast = new Ast(capacity);
+        parser.symbolTable.globals = globals;
+        return parser;
+    }
+
+    // Parses again from a statement of an already lexed region, e.g. after a name it uses changed
+    static BhaiCharaParser reparse(TokenStream tokens, int from, SymbolTable.Globals globals) {
+        BhaiCharaParser parser = new BhaiCharaParser();
+        parser.tokens = tokens;
+        parser.ast = new Ast(16);
+        parser.pos = from;
+        parser.symbolTable.globals = globals;
+        return parser;
+    }
+
+    int position() {
+        return pos;
+    }
+
+    // Token count before each lexer error, in the order the errors lead the error list
+    List<Integer> lexerErrorTokens() {
+        return lexer != null ? lexer.errorTokens : Collections.emptyList();
+    }
+
+    CompilationUnit unit() {
+        return new CompilationUnit(tokens, ast, errors, symbolTable);
+    }
+
+    // Maps the file instead of reading it into a String, so lexing never copies the source onto
+    // the heap. Tokens keep the mapping alive; files over 2 GB are rejected by FileChannel.map.
+    static CompilationUnit compileFile(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return compile(new ByteSource(bytes, 0, bytes.limit()));
         }
     }
 
@@ -78,185 +882,591 @@ public class BhaiCharaParser {
                 + "    dekhana(\"x is great!\");\n"
                 + "}";
 
-        tokenize(program);
-        parse();
-        displayTokenSequence();  // New display method
-        displaySymbolTable();
-        displayErrors();
+        CompilationUnit unit = compile(program);
+        displayTokenSequence(unit);  // New display method
+        displayAst(unit);
+        displaySymbolTable(unit);
+        displayErrors(unit);
     }
 
-    private static void displayTokenSequence() {
+    private static void displayTokenSequence(CompilationUnit unit) {
         System.out.println("\nTokenization Sequence:");
 
-        Map<Integer, List<Token>> tokensByLine = new TreeMap<>();
-        for (Token token : tokens) {
-            tokensByLine.computeIfAbsent(token.line, k -> new ArrayList<>()).add(token);
+        Map<Integer, List<TokenKind>> tokensByLine = new TreeMap<>();
+        for (int i = 0; i < unit.tokens.size(); i++) {
+            tokensByLine.computeIfAbsent(unit.tokens.line(i), k -> new ArrayList<>()).add(unit.tokens.kind(i));
         }
 
         // Display tokens per line
-        for (Map.Entry<Integer, List<Token>> entry : tokensByLine.entrySet()) {
+        for (Map.Entry<Integer, List<TokenKind>> entry : tokensByLine.entrySet()) {
             StringBuilder lineOutput = new StringBuilder();
-            for (Token token : entry.getValue()) {
-                String displayType = getDisplayType(token.type);
-                lineOutput.append("[").append(displayType).append("]");
+            for (TokenKind kind : entry.getValue()) {
+                lineOutput.append("[").append(kind.displayType).append("]");
             }
             System.out.printf("Line %2d: %s%n", entry.getKey(), lineOutput.toString());
         }
     }
 
-    private static String getDisplayType(String tokenType) {
-        return switch (tokenType) {
-            case "BOOL_TYPE", "INT_TYPE", "FLOAT_TYPE", "CHAR_TYPE", "STRING_TYPE" ->
-                "type";
-            case "IF", "ELSE_IF", "ELSE", "LOOP", "PRINT", "INPUT", "FUNCTION" ->
-                "keyword";
-            case "IDENTIFIER" ->
-                "identifier";
-            case "NUMBER" ->
-                "number";
-            case "STRING" ->
-                "string";
-            case "OPERATOR" ->
-                "operator";
-            case "COMMENT" ->
-                "Comment";
-            default ->
-                "unknown";
-        };
-    }
-
-    private static void displayTokens() {
+    private static void displayTokens(CompilationUnit unit) {
         System.out.println("\nTokenization Results:");
         System.out.println("+----------------+-------------------+-------+");
         System.out.println("| Token Type     | Value             | Line  |");
         System.out.println("+----------------+-------------------+-------+");
 
-        for (Token t : tokens) {
-            String formattedValue = t.value.length() > 15
-                    ? t.value.substring(0, 12) + "..." : t.value;
+        for (int i = 0; i < unit.tokens.size(); i++) {
+            String value = unit.tokens.text(i);
+            String formattedValue = value.length() > 15
+                    ? value.substring(0, 12) + "..." : value;
             System.out.printf("| %-14s | %-17s | %-5d |\n",
-                    t.type, formattedValue, t.line);
+                    unit.tokens.kind(i), formattedValue, unit.tokens.line(i));
         }
 
         System.out.println("+----------------+-------------------+-------+");
     }
 
-    private static void displaySymbolTable() {
+    private static void displayAst(CompilationUnit unit) {
+        System.out.println("\nSyntax Tree:");
+        displayNode(unit, unit.ast.root, 0);
+    }
+
+    private static void displayNode(CompilationUnit unit, int node, int depth) {
+        Ast ast = unit.ast;
+        int token = ast.token(node);
+        System.out.printf("%s%s%s%n", "  ".repeat(depth), ast.kind(node),
+                token >= 0 ? " " + unit.tokens.text(token) : "");
+        for (int child = ast.child(node); child >= 0; child = ast.next(child)) {
+            displayNode(unit, child, depth + 1);
+        }
+    }
+
+    private static void displaySymbolTable(CompilationUnit unit) {
         System.out.println("\nSymbol Table:");
-        System.out.println("+----------+------------+----------------+");
-        System.out.println("| Variable | Type       | Declared Line  |");
-        System.out.println("+----------+------------+----------------+");
+        System.out.println("+----------+------------+----------------+-------+");
+        System.out.println("| Variable | Type       | Declared Line  | Scope |");
+        System.out.println("+----------+------------+----------------+-------+");
 
-        for (SymbolTableEntry e : symbolTable.entries) {
-            System.out.printf("| %-8s | %-10s | %-14d |\n",
-                    e.name, e.type, e.declaredLine);
+        for (SymbolTableEntry e : unit.symbolTable.entries) {
+            System.out.printf("| %-8s | %-10s | %-14d | %-5d |\n",
+                    e.name, e.type, e.declaredLine, e.scope);
         }
 
-        System.out.println("+----------+------------+----------------+");
+        System.out.println("+----------+------------+----------------+-------+");
     }
 
-    private static void displayErrors() {
-        if (!errors.isEmpty()) {
+    private static void displayErrors(CompilationUnit unit) {
+        if (!unit.errors.isEmpty()) {
             System.out.println("\nSyntax Errors:");
             System.out.println("+--------------------------------------------+");
-            errors.forEach(err -> System.out.println("| " + err));
+            unit.errors.forEach(err -> System.out.println("| " + err));
             System.out.println("+--------------------------------------------+");
         }
     }
 
-    private static void tokenize(String input) {
-        String[] lines = input.split("\n");
-        Pattern pattern = Pattern.compile(
-                "(?<COMMENT>\\?\\?.*|<<.*?>>)|"
-                + "(?<KEYWORD>" + String.join("|", KEYWORDS.keySet()) + ")|"
-                + "(?<IDENTIFIER>[A-Z][A-Z0-9]*)|"
-                + "(?<NUMBER>\\d+(\\.\\d+)?)|"
-                + "(?<STRING>\"[^\"]*\")|"
-                + "(?<OPERATOR>[+\\-*/%=(){}<>;])|"
-                + "(?<INVALID>[a-z][a-z0-9]*)"
-        );
-
-        for (String line : lines) {
-            Matcher matcher = pattern.matcher(line);
-            while (matcher.find()) {
-                if (matcher.group("COMMENT") != null) {
-                    continue;
-                }
-                if (matcher.group("KEYWORD") != null) {
-                    String keyword = matcher.group("KEYWORD");
-                    tokens.add(new Token(KEYWORDS.get(keyword), keyword, lineNumber));
-                } else if (matcher.group("IDENTIFIER") != null) {
-                    String identifier = matcher.group("IDENTIFIER");
-                    tokens.add(new Token("IDENTIFIER", identifier, lineNumber));
-                } else if (matcher.group("NUMBER") != null) {
-                    tokens.add(new Token("NUMBER", matcher.group("NUMBER"), lineNumber));
-                } else if (matcher.group("STRING") != null) {
-                    tokens.add(new Token("STRING", matcher.group("STRING"), lineNumber));
-                } else if (matcher.group("OPERATOR") != null) {
-                    tokens.add(new Token("OPERATOR", matcher.group("OPERATOR"), lineNumber));
-                } else if (matcher.group("INVALID") != null) {
-                    errors.add("Error at line " + lineNumber + ": Invalid identifier '"
-                            + matcher.group("INVALID") + "'. Must start with capital letter.");
-                }
+    private void tokenize(CharSequence input) {
+        CompilerMetrics.Span span = CompilerMetrics.begin(CompilerMetrics.Phase.TOKENIZE);
+        lexer = new Lexer(input, errors);
+        lexer.out = tokens;
+        int count = lexer.next(Integer.MAX_VALUE);
+        CompilerMetrics.end(span, count);
+    }
+
+    // Recursive descent over the token stream, one token of lookahead, with a precedence-climbing
+    // expression parser. Every token is consumed once, either by a rule or while resynchronizing
+    // after an error, so the whole pass is linear and reports every error it can recover from.
+    private void parse() {
+        CompilerMetrics.Span span = CompilerMetrics.begin(CompilerMetrics.Phase.PARSE);
+        symbolTable.span = CompilerMetrics.beginPaused(CompilerMetrics.Phase.SYMBOL_TABLE);
+        ast = new Ast();
+        pos = 0;
+        ast.root = ast.add(NodeKind.PROGRAM, -1, statements(false), -1);
+        endSymbolTable();
+        CompilerMetrics.end(span, ast.size);
+    }
+
+    // Streaming, tokens are lexed on demand, so the lexer's time counts toward PARSE
+    private void parseStreaming() {
+        CompilerMetrics.Span span = CompilerMetrics.begin(CompilerMetrics.Phase.PARSE);
+        symbolTable.span = CompilerMetrics.beginPaused(CompilerMetrics.Phase.SYMBOL_TABLE);
+        ast = new Ast();
+        pos = 0;
+        long nodes = 0;
+        while (tokens.has(pos)) {
+            parseStatement();
+            nodes += ast.size;
+            ast.size = 0;
+        }
+        endSymbolTable();
+        CompilerMetrics.end(span, nodes);
+    }
+
+    private void endSymbolTable() {
+        CompilerMetrics.end(symbolTable.span, symbolTable.count, symbolTable.lookups);
+        symbolTable.span = null;
+    }
+
+    private int statements(boolean inBlock) {
+        int head = -1;
+        int tail = -1;
+        while (tokens.has(pos)) {
+            if (inBlock && tokens.is(pos, '}')) {
+                break;
+            }
+            int node = parseStatement();
+            if (node < 0) {
+                continue;
+            }
+            if (head < 0) {
+                head = node;
+            } else {
+                ast.link(tail, node);
+            }
+            tail = node;
+        }
+        return head;
+    }
+
+    // One top-level statement, or a stray '}'. Returns -1 if nothing was added to the tree.
+    int parseStatement() {
+        if (tokens.is(pos, '}')) {
+            error(tokens.line(pos), "Unmatched '}'");
+            pos++;
+            return -1;
+        }
+        return statement();
+    }
+
+    private int statement() {
+        int start = pos;
+        try {
+            TokenKind kind = tokens.kind(pos);
+            if (kind.isType()) {
+                return declaration();
+            }
+            switch (kind) {
+                case IF:
+                    return ifStatement();
+                case ELSE_IF:
+                case ELSE:
+                    // Parse the dangling branch anyway so its body is still checked
+                    error(tokens.line(pos), "Else without if");
+                    if (kind == TokenKind.ELSE_IF) {
+                        ifStatement();
+                    } else {
+                        block("ELSE", tokens.line(pos++), true);
+                    }
+                    return -1;
+                case LOOP:
+                    return loop();
+                case PRINT:
+                    return print();
+                case INPUT:
+                    return input();
+                case FUNCTION:
+                    return function();
+                case IDENTIFIER:
+                    return assignmentOrCall();
+                default:
+                    if (tokens.is(pos, '{')) {
+                        return block("BLOCK", tokens.line(pos), true);
+                    }
+                    error(tokens.line(pos), "Unexpected '" + tokens.text(pos) + "'");
+                    throw SYNTAX_ERROR;
+            }
+        } catch (SyntaxError e) {
+            synchronize(start);
+            return -1;
+        }
+    }
+
+    // Panic mode: skip to just past the next ';', or to the next token that can start a statement
+    private void synchronize(int start) {
+        if (pos == start) {
+            pos++;
+        }
+        while (tokens.has(pos)) {
+            if (tokens.is(pos, ';')) {
+                pos++;
+                return;
             }
-            lineNumber++;
+            if (tokens.is(pos, '{') || tokens.is(pos, '}') || startsStatement(tokens.kind(pos))) {
+                return;
+            }
+            pos++;
         }
     }
 
-    private static void parse() {
-        Stack<String> blockStack = new Stack<>();
-        boolean expectSemicolon = false;
+    private static boolean startsStatement(TokenKind kind) {
+        return kind.isType() || kind.displayType.equals("keyword");
+    }
+
+    private int declaration() {
+        int type = pos++;
+        if (!tokens.has(pos) || tokens.kind(pos) != TokenKind.IDENTIFIER) {
+            error(tokens.line(type), "Invalid variable declaration");
+            throw SYNTAX_ERROR;
+        }
+        int name = pos++;
+        // Declared before the initializer is parsed, so a bad initializer doesn't cascade into
+        // "Undeclared variable" errors further down
+        SymbolTableEntry entry = symbolTable.addEntry(tokens.text(name), tokens.kind(type).typeName, tokens.line(name));
+        int value = -1;
+        if (tokens.is(pos, '=')) {
+            pos++;
+            value = expression(0);
+        }
+        expect(';');
+        return ast.add(NodeKind.VAR_DECL, name, value, entry.id);
+    }
 
-        for (int i = 0; i < tokens.size(); i++) {
-            Token token = tokens.get(i);
+    private int assignmentOrCall() {
+        int name = pos++;
+        if (tokens.is(pos, '(')) {
+            int call = call(name);
+            expect(';');
+            return call;
+        }
+        int symbol = resolve(name);
+        expect('=');
+        int value = expression(0);
+        expect(';');
+        return ast.add(NodeKind.ASSIGN, name, value, symbol);
+    }
 
-            // Variable declaration check
-            if (token.type.endsWith("_TYPE")) {
-                if (i + 1 >= tokens.size() || tokens.get(i + 1).type != "IDENTIFIER") {
-                    errors.add("Error at line " + token.line + ": Invalid variable declaration");
+    // An else-if is an IF nested as the else branch of the one before it. The clauses are parsed
+    // in a loop, since a chain can run to thousands, and their IF nodes are added innermost first
+    // once the chain ends, as a recursive parse would.
+    private int ifStatement() {
+        int[] clauses = new int[24];
+        int count = 0;
+        int otherwise = -1;
+        while (true) {
+            int keyword = pos++;
+            int line = tokens.line(keyword);
+            int condition = condition(keyword);
+            int body = block("IF", line, true);
+            ast.link(condition, body);
+            if (count + 3 > clauses.length) {
+                clauses = Arrays.copyOf(clauses, clauses.length * 2);
+            }
+            clauses[count++] = keyword;
+            clauses[count++] = condition;
+            clauses[count++] = body;
+            if (!tokens.has(pos) || tokens.kind(pos) != TokenKind.ELSE_IF) {
+                break;
+            }
+        }
+        if (tokens.has(pos) && tokens.kind(pos) == TokenKind.ELSE) {
+            otherwise = block("ELSE", tokens.line(pos++), true);
+        }
+        for (int i = count - 3; i >= 0; i -= 3) {
+            if (otherwise >= 0) {
+                ast.link(clauses[i + 2], otherwise);
+            }
+            otherwise = ast.add(NodeKind.IF, clauses[i], clauses[i + 1], -1);
+        }
+        return otherwise;
+    }
+
+    private int loop() {
+        int keyword = pos++;
+        int line = tokens.line(keyword);
+        int condition = condition(keyword);
+        ast.link(condition, block("LOOP", line, true));
+        return ast.add(NodeKind.LOOP, keyword, condition, -1);
+    }
+
+    // A bad condition is recovered here rather than in statement(), so the block that follows
+    // still parses as the body and its '}' doesn't turn up later as unmatched
+    private int condition(int keyword) {
+        int start = pos;
+        try {
+            if (!tokens.is(pos, '(')) {
+                error(tokens.line(keyword), "Missing '(' after " + tokens.text(keyword));
+                throw SYNTAX_ERROR;
+            }
+            pos++;
+            int condition = expression(0);
+            expect(')');
+            return condition;
+        } catch (SyntaxError e) {
+            while (tokens.has(pos) && !tokens.is(pos, '{') && !tokens.is(pos, ';')
+                    && !tokens.is(pos, '}') && !startsStatement(tokens.kind(pos))) {
+                pos++;
+            }
+            return ast.add(NodeKind.ERROR, start, -1, -1);
+        }
+    }
+
+    // Takes the keyword's line rather than its index, which a streaming window may have dropped by
+    // the time an unclosed block is reported. Callers read that line as soon as they consume the
+    // keyword, since a long condition or parameter list can push it out of the window before then.
+    private int block(String owner, int line, boolean scoped) {
+        int open = pos;
+        nest();
+        try {
+            expect('{');
+            if (scoped) {
+                symbolTable.enterScope();
+            }
+            int body = statements(true);
+            if (scoped) {
+                symbolTable.exitScope();
+            }
+            if (tokens.has(pos)) {
+                pos++;
+            } else {
+                error(line, "Unclosed " + owner + " block");
+            }
+            return ast.add(NodeKind.BLOCK, open, body, -1);
+        } finally {
+            depth--;
+        }
+    }
+
+    // Enters one level of nesting. Past the limit the error is reported once: the whole group that
+    // would nest deeper is skipped, and the statement holding it recovers as from any syntax error.
+    private void nest() {
+        if (depth == MAX_NESTING) {
+            error(tokens.has(pos) ? tokens.line(pos) : lineAt(pos), "Nesting too deep: more than " + MAX_NESTING + " levels");
+            int open = 0;
+            do {
+                if (tokens.is(pos, '{') || tokens.is(pos, '(')) {
+                    open++;
+                } else if (tokens.is(pos, '}') || tokens.is(pos, ')')) {
+                    open--;
+                }
+                pos++;
+            } while (open > 0 && tokens.has(pos));
+            throw SYNTAX_ERROR;
+        }
+        depth++;
+    }
+
+    private int print() {
+        int keyword = pos++;
+        expect('(');
+        int arguments = arguments();
+        expect(';');
+        return ast.add(NodeKind.PRINT, keyword, arguments, -1);
+    }
+
+    private int input() {
+        pos++;
+        expect('(');
+        int name = expectIdentifier();
+        int symbol = resolve(name);
+        expect(')');
+        expect(';');
+        return ast.add(NodeKind.INPUT, name, -1, symbol);
+    }
+
+    // Parameters share the body's scope, so redeclaring one in the body is an error, not shadowing
+    private int function() {
+        int keyword = pos++;
+        int line = tokens.line(keyword);
+        int name = expectIdentifier();
+        // Declared before the body so the function can call itself
+        SymbolTableEntry entry = symbolTable.addEntry(tokens.text(name), "FUNCTION", tokens.line(name));
+        expect('(');
+        symbolTable.enterScope();
+        try {
+            int head = -1;
+            int tail = -1;
+            while (!tokens.is(pos, ')')) {
+                if (head >= 0) {
+                    expect(tokens.is(pos, ',') ? ',' : ')');
+                }
+                int type = pos;
+                if (!tokens.has(type) || !tokens.kind(type).isType()) {
+                    error(lineAt(type), "Expected parameter type but found " + describe(type));
+                    throw SYNTAX_ERROR;
+                }
+                pos++;
+                int param = expectIdentifier();
+                SymbolTableEntry declared = symbolTable.addEntry(tokens.text(param), tokens.kind(type).typeName,
+                        tokens.line(param));
+                int node = ast.add(NodeKind.PARAM, param, -1, declared.id);
+                if (head < 0) {
+                    head = node;
                 } else {
-                    String type = token.type.replace("_TYPE", "");
-                    String name = tokens.get(i + 1).value;
-                    symbolTable.addEntry(name, type, token.line);
-                    i += 2; // Skip identifier and possible assignment
+                    ast.link(tail, node);
                 }
+                tail = node;
             }
+            pos++;
+            int body = block("FUNCTION", line, false);
+            if (head < 0) {
+                head = body;
+            } else {
+                ast.link(tail, body);
+            }
+            return ast.add(NodeKind.FUNCTION, name, head, entry.id);
+        } finally {
+            symbolTable.exitScope();
+        }
+    }
 
-            // Syntax structure checks
-            switch (token.type) {
-                case "IF":
-                case "ELSE_IF":
-                    if (i + 1 >= tokens.size() || !tokens.get(i + 1).value.equals("(")) {
-                        errors.add("Error at line " + token.line + ": Missing '(' after " + token.value);
-                    }
-                    blockStack.push("IF");
-                    break;
-                case "ELSE":
-                    if (!blockStack.isEmpty() && blockStack.peek().equals("IF")) {
-                        blockStack.pop();
-                    } else {
-                        errors.add("Error at line " + token.line + ": Else without if");
-                    }
-                    break;
-                case "LOOP":
-                    blockStack.push("LOOP");
-                    break;
-                case "PRINT":
-                case "INPUT":
-                    expectSemicolon = true;
-                    break;
-                case ";":
-                    if (!expectSemicolon) {
-                        errors.add("Error at line " + token.line + ": Unexpected semicolon");
-                    }
-                    expectSemicolon = false;
-                    break;
+    private int call(int name) {
+        SymbolTableEntry entry = symbolTable.resolve(tokens.text(name));
+        if (entry == null) {
+            error(tokens.line(name), "Undeclared function '" + tokens.text(name) + "'");
+        } else if (!entry.type.equals("FUNCTION")) {
+            error(tokens.line(name), "'" + entry.name + "' is not a function");
+        }
+        pos++;
+        int arguments = arguments();
+        return ast.add(NodeKind.CALL, name, arguments, entry != null ? entry.id : -1);
+    }
+
+    // Comma-separated expressions up to and including the closing ')'
+    private int arguments() {
+        int head = -1;
+        int tail = -1;
+        while (!tokens.is(pos, ')')) {
+            // Anything but a ',' after an argument is reported as the missing ')'
+            if (head >= 0) {
+                expect(tokens.is(pos, ',') ? ',' : ')');
+            }
+            int argument = expression(0);
+            if (head < 0) {
+                head = argument;
+            } else {
+                ast.link(tail, argument);
+            }
+            tail = argument;
+        }
+        pos++;
+        return head;
+    }
+
+    // Precedence climbing: parses operators binding tighter than minPrecedence, left-associative
+    private int expression(int minPrecedence) {
+        int left = unary();
+        while (true) {
+            int precedence = binaryPrecedence(pos);
+            if (precedence <= minPrecedence) {
+                return left;
+            }
+            int operator = pos++;
+            int right = expression(precedence);
+            ast.link(left, right);
+            left = ast.add(NodeKind.BINARY, operator, left, -1);
+        }
+    }
+
+    private int binaryPrecedence(int i) {
+        if (!tokens.has(i) || tokens.kind(i) != TokenKind.OPERATOR) {
+            return 0;
+        }
+        boolean pair = tokens.length(i) == 2;
+        switch (tokens.firstChar(i)) {
+            case '=':
+            case '!':
+                return pair ? 1 : 0;
+            case '<':
+            case '>':
+                return 2;
+            case '+':
+            case '-':
+                return 3;
+            case '*':
+            case '/':
+            case '%':
+                return 4;
+            default:
+                return 0;
+        }
+    }
+
+    private int unary() {
+        if (tokens.is(pos, '-')) {
+            nest();
+            try {
+                int operator = pos++;
+                return ast.add(NodeKind.UNARY, operator, unary(), -1);
+            } finally {
+                depth--;
             }
         }
+        return primary();
+    }
+
+    private int primary() {
+        if (!tokens.has(pos)) {
+            error(lineAt(pos), "Expected expression but found end of input");
+            throw SYNTAX_ERROR;
+        }
+        int token = pos;
+        switch (tokens.kind(token)) {
+            case NUMBER:
+                pos++;
+                return ast.add(NodeKind.NUMBER, token, -1, -1);
+            case STRING:
+                pos++;
+                return ast.add(NodeKind.STRING, token, -1, -1);
+            case IDENTIFIER:
+                pos++;
+                if (tokens.is(pos, '(')) {
+                    return call(token);
+                }
+                return ast.add(NodeKind.NAME, token, -1, resolve(token));
+            default:
+                if (tokens.is(token, '(')) {
+                    nest();
+                    try {
+                        pos++;
+                        int inner = expression(0);
+                        expect(')');
+                        return inner;
+                    } finally {
+                        depth--;
+                    }
+                }
+                error(tokens.line(token), "Expected expression but found " + describe(token));
+                throw SYNTAX_ERROR;
+        }
+    }
+
+    private int resolve(int name) {
+        SymbolTableEntry entry = symbolTable.resolve(tokens.text(name));
+        if (entry == null) {
+            error(tokens.line(name), "Undeclared variable '" + tokens.text(name) + "'");
+            return -1;
+        }
+        return entry.id;
+    }
+
+    private void expect(char c) {
+        if (tokens.is(pos, c)) {
+            pos++;
+            return;
+        }
+        error(lineAt(pos), "Expected '" + c + "' but found " + describe(pos));
+        throw SYNTAX_ERROR;
+    }
 
-        // Check for unclosed blocks
-        while (!blockStack.isEmpty()) {
-            errors.add("Error: Unclosed " + blockStack.pop() + " block");
+    private int expectIdentifier() {
+        if (tokens.has(pos) && tokens.kind(pos) == TokenKind.IDENTIFIER) {
+            return pos++;
         }
+        error(lineAt(pos), "Expected identifier but found " + describe(pos));
+        throw SYNTAX_ERROR;
+    }
+
+    // Missing tokens are reported on the line of the token before them, which is the line the
+    // statement was written on
+    private int lineAt(int i) {
+        if (i > 0) {
+            return tokens.line(i - 1);
+        }
+        return tokens.has(0) ? tokens.line(0) : 1;
+    }
+
+    private String describe(int i) {
+        return tokens.has(i) ? "'" + tokens.text(i) + "'" : "end of input";
+    }
+
+    private void error(int line, String message) {
+        errors.add("Error at line " + line + ": " + message);
     }
 }
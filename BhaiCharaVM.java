@@ -0,0 +1,913 @@
+
+import java.io.*;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+public class BhaiCharaVM {
+
+    // Opcodes; operands follow inline in the code array. Numeric values live unboxed in a long[]
+    // operand stack (bfloat as raw double bits), strings in a parallel reference array.
+    static final int CONST = 0, SCONST = 1;
+    static final int LOAD = 2, STORE = 3, GLOAD = 4, GSTORE = 5;
+    static final int RLOAD = 6, RSTORE = 7, GRLOAD = 8, GRSTORE = 9;
+    static final int IADD = 10, ISUB = 11, IMUL = 12, IDIV = 13, IREM = 14, INEG = 15;
+    static final int FADD = 16, FSUB = 17, FMUL = 18, FDIV = 19, FREM = 20, FNEG = 21;
+    static final int IEQ = 22, INE = 23, ILT = 24, ILE = 25, IGT = 26, IGE = 27;
+    static final int FEQ = 28, FNE = 29, FLT = 30, FLE = 31, FGT = 32, FGE = 33;
+    static final int SEQ = 34, SNE = 35;
+    static final int I2F = 36, I2S = 37, F2S = 38, B2S = 39, C2S = 40, SCONCAT = 41;
+    static final int JMP = 42, JZ = 43, JNZ = 44;
+    static final int PRINT_I = 45, PRINT_F = 46, PRINT_B = 47, PRINT_C = 48, PRINT_S = 49, PRINTLN = 50;
+    static final int READ_I = 51, READ_F = 52, READ_B = 53, READ_C = 54, READ_S = 55;
+    static final int CALL = 56, ENTER = 57, RET = 58, HALT = 59;
+
+    static final String[] OPCODE_NAMES = {
+        "CONST", "SCONST", "LOAD", "STORE", "GLOAD", "GSTORE", "RLOAD", "RSTORE", "GRLOAD", "GRSTORE",
+        "IADD", "ISUB", "IMUL", "IDIV", "IREM", "INEG", "FADD", "FSUB", "FMUL", "FDIV", "FREM", "FNEG",
+        "IEQ", "INE", "ILT", "ILE", "IGT", "IGE", "FEQ", "FNE", "FLT", "FLE", "FGT", "FGE", "SEQ", "SNE",
+        "I2F", "I2S", "F2S", "B2S", "C2S", "SCONCAT", "JMP", "JZ", "JNZ",
+        "PRINT_I", "PRINT_F", "PRINT_B", "PRINT_C", "PRINT_S", "PRINTLN",
+        "READ_I", "READ_F", "READ_B", "READ_C", "READ_S", "CALL", "ENTER", "RET", "HALT"
+    };
+
+    // Operand count and operand-stack effect per opcode; CALL's effect depends on its argument count
+    static final int[] OPERANDS = new int[OPCODE_NAMES.length];
+    static final int[] STACK_EFFECT = new int[OPCODE_NAMES.length];
+    private static final int MAX_CALL_DEPTH = 1 << 20;
+
+    static {
+        for (int op : new int[]{CONST, SCONST, LOAD, STORE, GLOAD, GSTORE, RLOAD, RSTORE, GRLOAD, GRSTORE,
+                JMP, JZ, JNZ, ENTER}) {
+            OPERANDS[op] = 1;
+        }
+        OPERANDS[CALL] = 2;
+        for (int op : new int[]{CONST, SCONST, LOAD, GLOAD, RLOAD, GRLOAD, READ_I, READ_F, READ_B, READ_C, READ_S}) {
+            STACK_EFFECT[op] = 1;
+        }
+        for (int op = STORE; op <= GRSTORE; op += 2) {
+            STACK_EFFECT[op] = -1;
+        }
+        for (int op = IADD; op <= SNE; op++) {
+            STACK_EFFECT[op] = op == INEG || op == FNEG ? 0 : -1;
+        }
+        for (int op : new int[]{SCONCAT, JZ, JNZ, PRINT_I, PRINT_F, PRINT_B, PRINT_C, PRINT_S}) {
+            STACK_EFFECT[op] = -1;
+        }
+    }
+
+    enum Type {
+        INT, FLOAT, BOOL, CHAR, STRING, FUNCTION, VOID, ERROR;
+
+        // bint, bbool and bchar share the integer instructions
+        boolean isIntLike() {
+            return this == INT || this == BOOL || this == CHAR;
+        }
+
+        boolean isNumeric() {
+            return isIntLike() || this == FLOAT;
+        }
+    }
+
+    static class Program {
+
+        int[] code;
+        int[] lines;
+        long[] constants;
+        String[] strings;
+        int globalCount;
+        int maxStack;
+
+        Program(int[] code, int[] lines, long[] constants, String[] strings, int globalCount, int maxStack) {
+            this.code = code;
+            this.lines = lines;
+            this.constants = constants;
+            this.strings = strings;
+            this.globalCount = globalCount;
+            this.maxStack = maxStack;
+        }
+    }
+
+    static class BhaiRuntimeException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        BhaiRuntimeException(int line, String message) {
+            super("Runtime error at line " + line + ": " + message);
+        }
+
+        BhaiRuntimeException(String message) {
+            super("Runtime error: " + message);
+        }
+    }
+
+    // Lowers a parsed unit to bytecode in one walk over the AST. Variables get fixed slots when
+    // their declaration is reached: globals for anything outside a function, frame slots inside
+    // one. Function bodies are emitted in place behind a jump, so every call target is already
+    // known when the call is compiled, including recursive calls.
+    static class Compiler {
+
+        BhaiCharaParser.CompilationUnit unit;
+        BhaiCharaParser.Ast ast;
+        BhaiCharaParser.TokenStream tokens;
+        List<String> errors;
+
+        int[] code = new int[256];
+        int[] lines = new int[256];
+        int size;
+        int line = 1;
+        int depth;
+        int maxStack;
+
+        List<Long> constants = new ArrayList<>();
+        Map<Long, Integer> constantIndex = new HashMap<>();
+        List<String> strings = new ArrayList<>();
+        Map<String, Integer> stringIndex = new HashMap<>();
+
+        // Indexed by symbol table entry id
+        int[] slots;
+        boolean[] global;
+        Type[] types;
+        int[] functionAddress;
+        List<List<Type>> parameters = new ArrayList<>();
+
+        Type[] nodeTypes;
+        boolean inFunction;
+        int globalCount;
+        int localCount;
+
+        Compiler(BhaiCharaParser.CompilationUnit unit) {
+            this.unit = unit;
+            this.ast = unit.ast;
+            this.tokens = unit.tokens;
+            this.errors = unit.errors;
+            int entries = unit.symbolTable.entries.size();
+            slots = new int[entries];
+            global = new boolean[entries];
+            types = new Type[entries];
+            functionAddress = new int[entries];
+            for (int i = 0; i < entries; i++) {
+                parameters.add(null);
+            }
+            nodeTypes = new Type[ast.size()];
+        }
+
+        Program compile() {
+            statements(ast.child(ast.root));
+            emit(HALT);
+            long[] pool = new long[constants.size()];
+            for (int i = 0; i < pool.length; i++) {
+                pool[i] = constants.get(i);
+            }
+            return new Program(Arrays.copyOf(code, size), Arrays.copyOf(lines, size), pool,
+                    strings.toArray(new String[0]), globalCount, maxStack);
+        }
+
+        private void statements(int node) {
+            for (; node >= 0; node = ast.next(node)) {
+                statement(node);
+            }
+        }
+
+        private void statement(int node) {
+            line = tokens.line(ast.token(node));
+            switch (ast.kind(node)) {
+                case VAR_DECL: {
+                    int symbol = ast.symbol(node);
+                    Type type = declare(symbol);
+                    if (ast.child(node) >= 0) {
+                        value(ast.child(node), type);
+                    } else if (type == Type.STRING) {
+                        emit(SCONST, string(""));
+                    } else {
+                        emit(CONST, constant(0));
+                    }
+                    store(symbol);
+                    break;
+                }
+                case ASSIGN: {
+                    int symbol = ast.symbol(node);
+                    if (types[symbol] == Type.FUNCTION) {
+                        error("Cannot assign to function '" + tokens.text(ast.token(node)) + "'");
+                        break;
+                    }
+                    value(ast.child(node), types[symbol]);
+                    store(symbol);
+                    break;
+                }
+                case IF:
+                    ifChain(node);
+                    break;
+                case LOOP: {
+                    // Condition at the bottom: one conditional jump per iteration
+                    int condition = ast.child(node);
+                    int enter = emitJump(JMP);
+                    int top = size;
+                    statement(ast.next(condition));
+                    patch(enter);
+                    line = tokens.line(ast.token(node));
+                    condition(condition);
+                    emit(JNZ, top);
+                    break;
+                }
+                case BLOCK:
+                    statements(ast.child(node));
+                    break;
+                case PRINT:
+                    for (int arg = ast.child(node); arg >= 0; arg = ast.next(arg)) {
+                        if (arg != ast.child(node)) {
+                            emit(SCONST, string(" "));
+                            emit(PRINT_S);
+                        }
+                        Type type = expression(arg);
+                        emit(printOp(type));
+                    }
+                    emit(PRINTLN);
+                    break;
+                case INPUT: {
+                    int symbol = ast.symbol(node);
+                    Type type = types[symbol];
+                    if (type == Type.FUNCTION) {
+                        error("Cannot read into function '" + tokens.text(ast.token(node)) + "'");
+                        break;
+                    }
+                    emit(READ_I + type.ordinal());
+                    store(symbol);
+                    break;
+                }
+                case FUNCTION:
+                    function(node);
+                    break;
+                case CALL:
+                    call(node);
+                    break;
+                default:
+                    error("Cannot compile " + ast.kind(node));
+                    break;
+            }
+        }
+
+        // An else-if is an IF in the else branch of the one before it, so a chain of them nests as
+        // deep as it is long. The clauses are emitted in a loop, and every clause that ran jumps
+        // past the rest of the chain to the same end.
+        private void ifChain(int node) {
+            int[] ends = new int[8];
+            int count = 0;
+            while (true) {
+                int condition = ast.child(node);
+                int body = ast.next(condition);
+                int otherwise = ast.next(body);
+                condition(condition);
+                int skip = emitJump(JZ);
+                statement(body);
+                if (otherwise < 0) {
+                    patch(skip);
+                    break;
+                }
+                if (count == ends.length) {
+                    ends = Arrays.copyOf(ends, count * 2);
+                }
+                ends[count++] = emitJump(JMP);
+                patch(skip);
+                if (ast.kind(otherwise) != BhaiCharaParser.NodeKind.IF) {
+                    statement(otherwise);
+                    break;
+                }
+                node = otherwise;
+                line = tokens.line(ast.token(node));
+            }
+            for (int i = 0; i < count; i++) {
+                patch(ends[i]);
+            }
+        }
+
+        private void function(int node) {
+            int symbol = ast.symbol(node);
+            types[symbol] = Type.FUNCTION;
+            if (inFunction) {
+                error("Function '" + tokens.text(ast.token(node)) + "' must be declared at top level");
+                return;
+            }
+            int skip = emitJump(JMP);
+            functionAddress[symbol] = size;
+            int enter = emitJump(ENTER);
+            inFunction = true;
+            localCount = 0;
+            List<Type> params = new ArrayList<>();
+            int child = ast.child(node);
+            for (; ast.kind(child) == BhaiCharaParser.NodeKind.PARAM; child = ast.next(child)) {
+                params.add(declare(ast.symbol(child)));
+            }
+            parameters.set(symbol, params);
+            statement(child);
+            emit(RET);
+            code[enter + 1] = localCount;
+            inFunction = false;
+            patch(skip);
+        }
+
+        private Type call(int node) {
+            int symbol = ast.symbol(node);
+            String name = tokens.text(ast.token(node));
+            List<Type> params = parameters.get(symbol);
+            int count = 0;
+            for (int arg = ast.child(node); arg >= 0; arg = ast.next(arg)) {
+                if (params != null && count < params.size()) {
+                    value(arg, params.get(count));
+                }
+                count++;
+            }
+            if (params == null) {
+                error("'" + name + "' is not a function");
+            } else if (count != params.size()) {
+                error("Function '" + name + "' expects " + params.size() + " argument(s) but got " + count);
+            } else {
+                emit(CALL, functionAddress[symbol], count);
+            }
+            return Type.VOID;
+        }
+
+        private Type declare(int symbol) {
+            BhaiCharaParser.SymbolTableEntry entry = unit.symbolTable.entries.get(symbol);
+            Type type = Type.valueOf(entry.type);
+            types[symbol] = type;
+            global[symbol] = !inFunction;
+            slots[symbol] = inFunction ? localCount++ : globalCount++;
+            return type;
+        }
+
+        private void store(int symbol) {
+            boolean ref = types[symbol] == Type.STRING;
+            emit(global[symbol] ? (ref ? GRSTORE : GSTORE) : (ref ? RSTORE : STORE), slots[symbol]);
+        }
+
+        private void load(int symbol) {
+            boolean ref = types[symbol] == Type.STRING;
+            emit(global[symbol] ? (ref ? GRLOAD : GLOAD) : (ref ? RLOAD : LOAD), slots[symbol]);
+        }
+
+        private void condition(int node) {
+            Type type = expression(node);
+            if (!type.isIntLike() && type != Type.ERROR) {
+                error("Condition must be BOOL, INT or CHAR, not " + type);
+            }
+        }
+
+        // Compiles an expression and converts it to the declared type of its destination
+        private void value(int node, Type target) {
+            // A one-character string literal is how a bchar is written
+            if (target == Type.CHAR && ast.kind(node) == BhaiCharaParser.NodeKind.STRING) {
+                String text = literal(node);
+                if (text.length() == 1) {
+                    emit(CONST, constant(text.charAt(0)));
+                    return;
+                }
+            }
+            Type type = expression(node);
+            if (type == target || type == Type.ERROR || (type.isIntLike() && target.isIntLike())) {
+                return;
+            }
+            if (type.isIntLike() && target == Type.FLOAT) {
+                emit(I2F);
+                return;
+            }
+            error("Cannot assign " + type + " to " + target);
+        }
+
+        private Type expression(int node) {
+            Type type = infer(node);
+            switch (ast.kind(node)) {
+                case NUMBER:
+                    emit(CONST, type == Type.FLOAT
+                            ? constant(Double.doubleToRawLongBits(Double.parseDouble(tokens.text(ast.token(node)))))
+                            : constant(parseInt(node)));
+                    break;
+                case STRING:
+                    emit(SCONST, string(literal(node)));
+                    break;
+                case NAME:
+                    if (type != Type.ERROR) {
+                        load(ast.symbol(node));
+                    }
+                    break;
+                case CALL:
+                    call(node);
+                    break;
+                case UNARY: {
+                    Type operand = expression(ast.child(node));
+                    if (operand.isNumeric()) {
+                        emit(operand == Type.FLOAT ? FNEG : INEG);
+                    }
+                    break;
+                }
+                case BINARY:
+                    binary(node, type);
+                    break;
+                default:
+                    break;
+            }
+            return type;
+        }
+
+        // Operators are left-associative, so a chain like 1 + 2 + ... + N is a left spine as deep as
+        // it is long. The spine is walked with a loop: its bottom operand is emitted first, then each
+        // operator with its right operand on the way back up.
+        private void binary(int node, Type type) {
+            if (type == Type.ERROR) {
+                return;
+            }
+            int[] spine = leftSpine(node);
+            int count = spine[0];
+            expression(ast.child(spine[count]));
+            for (int i = count; i >= 1; i--) {
+                operator(spine[i]);
+            }
+        }
+
+        // The binary nodes down the left spine from node, as a count followed by the nodes
+        private int[] leftSpine(int node) {
+            int[] spine = new int[8];
+            int count = 0;
+            for (int n = node; ast.kind(n) == BhaiCharaParser.NodeKind.BINARY; n = ast.child(n)) {
+                if (++count == spine.length) {
+                    spine = Arrays.copyOf(spine, spine.length * 2);
+                }
+                spine[count] = n;
+            }
+            spine[0] = count;
+            return spine;
+        }
+
+        // One binary operator whose left operand is already on the stack
+        private void operator(int node) {
+            int left = ast.child(node);
+            int right = ast.next(left);
+            Type leftType = infer(left);
+            Type rightType = infer(right);
+            String op = tokens.text(ast.token(node));
+            if (leftType == Type.STRING || rightType == Type.STRING) {
+                if (op.equals("+")) {
+                    toStringOp(leftType);
+                    expression(right);
+                    toStringOp(rightType);
+                    emit(SCONCAT);
+                } else {
+                    expression(right);
+                    emit(op.equals("==") ? SEQ : SNE);
+                }
+                return;
+            }
+            boolean floating = leftType == Type.FLOAT || rightType == Type.FLOAT;
+            if (floating && leftType != Type.FLOAT) {
+                emit(I2F);
+            }
+            expression(right);
+            if (floating && rightType != Type.FLOAT) {
+                emit(I2F);
+            }
+            int base = floating ? FADD : IADD;
+            switch (op) {
+                case "+": emit(base); break;
+                case "-": emit(base + 1); break;
+                case "*": emit(base + 2); break;
+                case "/": emit(base + 3); break;
+                case "%": emit(base + 4); break;
+                default:
+                    int compare = floating ? FEQ : IEQ;
+                    emit(compare + Arrays.asList("==", "!=", "<", "<=", ">", ">=").indexOf(op));
+                    break;
+            }
+        }
+
+        private void toStringOp(Type type) {
+            switch (type) {
+                case INT: emit(I2S); break;
+                case FLOAT: emit(F2S); break;
+                case BOOL: emit(B2S); break;
+                case CHAR: emit(C2S); break;
+                default: break;
+            }
+        }
+
+        // Static type of an expression node, computed once per node so checking stays linear.
+        // Type errors are reported here and the node becomes ERROR, which suppresses cascades.
+        private Type infer(int node) {
+            if (nodeTypes[node] != null) {
+                return nodeTypes[node];
+            }
+            Type type;
+            switch (ast.kind(node)) {
+                case NUMBER:
+                    type = tokens.text(ast.token(node)).indexOf('.') >= 0 ? Type.FLOAT : Type.INT;
+                    break;
+                case STRING:
+                    type = Type.STRING;
+                    break;
+                case NAME:
+                    type = types[ast.symbol(node)];
+                    if (type == Type.FUNCTION) {
+                        error("Function '" + tokens.text(ast.token(node)) + "' used as a value");
+                        type = Type.ERROR;
+                    }
+                    break;
+                case CALL:
+                    error("Function '" + tokens.text(ast.token(node)) + "' does not return a value");
+                    type = Type.ERROR;
+                    break;
+                case UNARY: {
+                    Type operand = infer(ast.child(node));
+                    type = operand == Type.FLOAT ? Type.FLOAT : operand.isIntLike() ? Type.INT : Type.ERROR;
+                    if (operand != Type.ERROR && type == Type.ERROR) {
+                        error("Cannot negate " + operand);
+                    }
+                    break;
+                }
+                case BINARY:
+                    type = inferBinary(node);
+                    break;
+                default:
+                    type = Type.ERROR;
+                    break;
+            }
+            nodeTypes[node] = type;
+            return type;
+        }
+
+        // Types the untyped binary nodes of a left spine bottom up, with a loop for the same reason
+        // binary() uses one
+        private Type inferBinary(int node) {
+            int[] spine = leftSpine(node);
+            int count = spine[0];
+            while (nodeTypes[spine[count]] != null) {
+                count--;
+            }
+            Type type = infer(ast.child(spine[count]));
+            for (int i = count; i >= 1; i--) {
+                type = binaryType(spine[i], type, infer(ast.next(ast.child(spine[i]))));
+                nodeTypes[spine[i]] = type;
+            }
+            return type;
+        }
+
+        private Type binaryType(int node, Type left, Type right) {
+            if (left == Type.ERROR || right == Type.ERROR) {
+                return Type.ERROR;
+            }
+            String op = tokens.text(ast.token(node));
+            boolean comparison = op.equals("==") || op.equals("!=") || op.equals("<") || op.equals("<=")
+                    || op.equals(">") || op.equals(">=");
+            if (left == Type.STRING || right == Type.STRING) {
+                if (op.equals("+")) {
+                    return Type.STRING;
+                }
+                if ((op.equals("==") || op.equals("!=")) && left == right) {
+                    return Type.BOOL;
+                }
+                error("Operator '" + op + "' cannot be applied to " + left + " and " + right);
+                return Type.ERROR;
+            }
+            if (comparison) {
+                return Type.BOOL;
+            }
+            return left == Type.FLOAT || right == Type.FLOAT ? Type.FLOAT : Type.INT;
+        }
+
+        private long parseInt(int node) {
+            try {
+                return Long.parseLong(tokens.text(ast.token(node)));
+            } catch (NumberFormatException e) {
+                error("Number too large: " + tokens.text(ast.token(node)));
+                return 0;
+            }
+        }
+
+        private String literal(int node) {
+            String text = tokens.text(ast.token(node));
+            return text.substring(1, text.length() - 1);
+        }
+
+        private static int printOp(Type type) {
+            switch (type) {
+                case FLOAT: return PRINT_F;
+                case BOOL: return PRINT_B;
+                case CHAR: return PRINT_C;
+                case STRING: return PRINT_S;
+                default: return PRINT_I;
+            }
+        }
+
+        private int constant(long value) {
+            return constantIndex.computeIfAbsent(value, v -> {
+                constants.add(v);
+                return constants.size() - 1;
+            });
+        }
+
+        private int string(String value) {
+            return stringIndex.computeIfAbsent(value, v -> {
+                strings.add(v);
+                return strings.size() - 1;
+            });
+        }
+
+        private void emit(int op, int... operands) {
+            if (size + 3 > code.length) {
+                code = Arrays.copyOf(code, code.length * 2);
+                lines = Arrays.copyOf(lines, lines.length * 2);
+            }
+            lines[size] = line;
+            code[size++] = op;
+            for (int operand : operands) {
+                lines[size] = line;
+                code[size++] = operand;
+            }
+            depth += op == CALL ? -operands[1] : STACK_EFFECT[op];
+            maxStack = Math.max(maxStack, depth);
+        }
+
+        // Emits a jump or ENTER with a placeholder operand and returns its address for patch()
+        private int emitJump(int op) {
+            emit(op, -1);
+            return size - 2;
+        }
+
+        private void patch(int at) {
+            code[at + 1] = size;
+        }
+
+        private void error(String message) {
+            errors.add("Error at line " + line + ": " + message);
+        }
+    }
+
+    // Adds type errors to unit.errors; the program is only runnable if that list stays empty
+    static Program compile(BhaiCharaParser.CompilationUnit unit) {
+        return new Compiler(unit).compile();
+    }
+
+    // Runs a program to completion and returns the number of instructions executed
+    static long run(Program program, BufferedReader in, Writer out) throws IOException {
+        int[] code = program.code;
+        long[] constants = program.constants;
+        String[] strings = program.strings;
+        long[] globals = new long[program.globalCount];
+        String[] globalRefs = new String[program.globalCount];
+        long[] stack = new long[Math.max(256, program.maxStack * 2)];
+        String[] refs = new String[stack.length];
+        int[] frames = new int[64];
+        int frameTop = 0;
+        int pc = 0;
+        int sp = 0;
+        int fp = 0;
+        long steps = 0;
+        StringBuilder buffer = new StringBuilder();
+
+        try {
+            while (true) {
+                steps++;
+                switch (code[pc]) {
+                    case CONST: stack[sp++] = constants[code[pc + 1]]; pc += 2; break;
+                    case SCONST: refs[sp++] = strings[code[pc + 1]]; pc += 2; break;
+                    case LOAD: stack[sp++] = stack[fp + code[pc + 1]]; pc += 2; break;
+                    case STORE: stack[fp + code[pc + 1]] = stack[--sp]; pc += 2; break;
+                    case GLOAD: stack[sp++] = globals[code[pc + 1]]; pc += 2; break;
+                    case GSTORE: globals[code[pc + 1]] = stack[--sp]; pc += 2; break;
+                    case RLOAD: refs[sp++] = refs[fp + code[pc + 1]]; pc += 2; break;
+                    case RSTORE: refs[fp + code[pc + 1]] = refs[--sp]; pc += 2; break;
+                    case GRLOAD: refs[sp++] = globalRefs[code[pc + 1]]; pc += 2; break;
+                    case GRSTORE: globalRefs[code[pc + 1]] = refs[--sp]; pc += 2; break;
+
+                    case IADD: sp--; stack[sp - 1] += stack[sp]; pc++; break;
+                    case ISUB: sp--; stack[sp - 1] -= stack[sp]; pc++; break;
+                    case IMUL: sp--; stack[sp - 1] *= stack[sp]; pc++; break;
+                    case IDIV: sp--; stack[sp - 1] /= stack[sp]; pc++; break;
+                    case IREM: sp--; stack[sp - 1] %= stack[sp]; pc++; break;
+                    case INEG: stack[sp - 1] = -stack[sp - 1]; pc++; break;
+
+                    case FADD: sp--; stack[sp - 1] = bits(real(stack[sp - 1]) + real(stack[sp])); pc++; break;
+                    case FSUB: sp--; stack[sp - 1] = bits(real(stack[sp - 1]) - real(stack[sp])); pc++; break;
+                    case FMUL: sp--; stack[sp - 1] = bits(real(stack[sp - 1]) * real(stack[sp])); pc++; break;
+                    case FDIV: sp--; stack[sp - 1] = bits(real(stack[sp - 1]) / real(stack[sp])); pc++; break;
+                    case FREM: sp--; stack[sp - 1] = bits(real(stack[sp - 1]) % real(stack[sp])); pc++; break;
+                    case FNEG: stack[sp - 1] = bits(-real(stack[sp - 1])); pc++; break;
+
+                    case IEQ: sp--; stack[sp - 1] = stack[sp - 1] == stack[sp] ? 1 : 0; pc++; break;
+                    case INE: sp--; stack[sp - 1] = stack[sp - 1] != stack[sp] ? 1 : 0; pc++; break;
+                    case ILT: sp--; stack[sp - 1] = stack[sp - 1] < stack[sp] ? 1 : 0; pc++; break;
+                    case ILE: sp--; stack[sp - 1] = stack[sp - 1] <= stack[sp] ? 1 : 0; pc++; break;
+                    case IGT: sp--; stack[sp - 1] = stack[sp - 1] > stack[sp] ? 1 : 0; pc++; break;
+                    case IGE: sp--; stack[sp - 1] = stack[sp - 1] >= stack[sp] ? 1 : 0; pc++; break;
+                    case FEQ: sp--; stack[sp - 1] = real(stack[sp - 1]) == real(stack[sp]) ? 1 : 0; pc++; break;
+                    case FNE: sp--; stack[sp - 1] = real(stack[sp - 1]) != real(stack[sp]) ? 1 : 0; pc++; break;
+                    case FLT: sp--; stack[sp - 1] = real(stack[sp - 1]) < real(stack[sp]) ? 1 : 0; pc++; break;
+                    case FLE: sp--; stack[sp - 1] = real(stack[sp - 1]) <= real(stack[sp]) ? 1 : 0; pc++; break;
+                    case FGT: sp--; stack[sp - 1] = real(stack[sp - 1]) > real(stack[sp]) ? 1 : 0; pc++; break;
+                    case FGE: sp--; stack[sp - 1] = real(stack[sp - 1]) >= real(stack[sp]) ? 1 : 0; pc++; break;
+                    case SEQ: sp--; stack[sp - 1] = refs[sp - 1].equals(refs[sp]) ? 1 : 0; pc++; break;
+                    case SNE: sp--; stack[sp - 1] = refs[sp - 1].equals(refs[sp]) ? 0 : 1; pc++; break;
+
+                    case I2F: stack[sp - 1] = bits(stack[sp - 1]); pc++; break;
+                    case I2S: refs[sp - 1] = Long.toString(stack[sp - 1]); pc++; break;
+                    case F2S: refs[sp - 1] = Double.toString(real(stack[sp - 1])); pc++; break;
+                    case B2S: refs[sp - 1] = stack[sp - 1] != 0 ? "true" : "false"; pc++; break;
+                    case C2S: refs[sp - 1] = String.valueOf((char) stack[sp - 1]); pc++; break;
+                    case SCONCAT: sp--; refs[sp - 1] = refs[sp - 1].concat(refs[sp]); pc++; break;
+
+                    case JMP: pc = code[pc + 1]; break;
+                    case JZ: pc = stack[--sp] == 0 ? code[pc + 1] : pc + 2; break;
+                    case JNZ: pc = stack[--sp] != 0 ? code[pc + 1] : pc + 2; break;
+
+                    case PRINT_I: buffer.append(stack[--sp]); pc++; break;
+                    case PRINT_F: buffer.append(real(stack[--sp])); pc++; break;
+                    case PRINT_B: buffer.append(stack[--sp] != 0); pc++; break;
+                    case PRINT_C: buffer.append((char) stack[--sp]); pc++; break;
+                    case PRINT_S: buffer.append(refs[--sp]); pc++; break;
+                    case PRINTLN:
+                        buffer.append('\n');
+                        if (buffer.length() >= 8192) {
+                            out.append(buffer);
+                            buffer.setLength(0);
+                        }
+                        pc++;
+                        break;
+
+                    case READ_I: case READ_F: case READ_B: case READ_C: case READ_S: {
+                        out.append(buffer).flush();
+                        buffer.setLength(0);
+                        String text = in.readLine();
+                        if (text == null) {
+                            throw new BhaiRuntimeException(program.lines[pc], "Unexpected end of input");
+                        }
+                        if (code[pc] == READ_S) {
+                            refs[sp++] = text;
+                        } else {
+                            stack[sp++] = parseInput(code[pc], text.trim(), program.lines[pc]);
+                        }
+                        pc++;
+                        break;
+                    }
+
+                    // Arguments already sit on the operand stack and become the callee's first slots
+                    case CALL:
+                        if (frameTop == frames.length) {
+                            if (frameTop >= 2 * MAX_CALL_DEPTH) {
+                                throw new BhaiRuntimeException(program.lines[pc], "Stack overflow");
+                            }
+                            frames = Arrays.copyOf(frames, frameTop * 2);
+                        }
+                        frames[frameTop++] = pc + 3;
+                        frames[frameTop++] = fp;
+                        fp = sp - code[pc + 2];
+                        pc = code[pc + 1];
+                        break;
+                    case ENTER:
+                        sp = fp + code[pc + 1];
+                        if (sp + program.maxStack > stack.length) {
+                            stack = Arrays.copyOf(stack, (sp + program.maxStack) * 2);
+                            refs = Arrays.copyOf(refs, stack.length);
+                        }
+                        pc += 2;
+                        break;
+                    case RET:
+                        sp = fp;
+                        fp = frames[--frameTop];
+                        pc = frames[--frameTop];
+                        break;
+                    case HALT:
+                        out.append(buffer).flush();
+                        return steps;
+                    default:
+                        throw new IllegalStateException("Bad opcode " + code[pc] + " at " + pc);
+                }
+            }
+        } catch (ArithmeticException e) {
+            out.append(buffer).flush();
+            throw new BhaiRuntimeException(program.lines[pc], "Division by zero");
+        }
+    }
+
+    private static double real(long bits) {
+        return Double.longBitsToDouble(bits);
+    }
+
+    private static long bits(double value) {
+        return Double.doubleToRawLongBits(value);
+    }
+
+    static long parseInput(int op, String text, int line) {
+        try {
+            switch (op) {
+                case READ_I:
+                    return Long.parseLong(text);
+                case READ_F:
+                    return bits(Double.parseDouble(text));
+                case READ_B:
+                    if (text.equals("true") || text.equals("1")) {
+                        return 1;
+                    }
+                    if (text.equals("false") || text.equals("0")) {
+                        return 0;
+                    }
+                    break;
+                default:
+                    if (!text.isEmpty()) {
+                        return text.charAt(0);
+                    }
+                    break;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new BhaiRuntimeException(line, "Invalid input '" + text + "' for " + OPCODE_NAMES[op].substring(5));
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: java BhaiCharaVM [--dump] <file.bhai>");
+            System.out.println("       java BhaiCharaVM --bench");
+            return;
+        }
+        if (args[0].equals("--bench")) {
+            benchmark();
+            return;
+        }
+        boolean dump = args[0].equals("--dump");
+        Path file = Paths.get(args[dump ? 1 : 0]);
+
+        BhaiCharaParser.CompilationUnit unit = BhaiCharaParser.compileFile(file);
+        Program program = unit.errors.isEmpty() ? compile(unit) : null;
+        if (!unit.errors.isEmpty()) {
+            unit.errors.forEach(System.err::println);
+            System.exit(1);
+        }
+        if (dump) {
+            displayCode(program);
+            return;
+        }
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+        try {
+            run(program, new BufferedReader(new InputStreamReader(System.in)), out);
+        } catch (BhaiRuntimeException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    static void displayCode(Program program) {
+        System.out.println("\nBytecode:");
+        System.out.println("+-------+------+------------+------------------+");
+        System.out.println("| Addr  | Line | Opcode     | Operands         |");
+        System.out.println("+-------+------+------------+------------------+");
+        for (int pc = 0; pc < program.code.length; pc += 1 + OPERANDS[program.code[pc]]) {
+            int op = program.code[pc];
+            StringBuilder operands = new StringBuilder();
+            for (int i = 1; i <= OPERANDS[op]; i++) {
+                operands.append(i > 1 ? " " : "").append(program.code[pc + i]);
+            }
+            if (op == CONST) {
+                operands.append(" (").append(program.constants[program.code[pc + 1]]).append(")");
+            } else if (op == SCONST) {
+                operands.append(" \"").append(program.strings[program.code[pc + 1]]).append("\"");
+            }
+            System.out.printf("| %-5d | %-4d | %-10s | %-16s |\n", pc, program.lines[pc], OPCODE_NAMES[op], operands);
+        }
+        System.out.println("+-------+------+------------+------------------+");
+    }
+
+    static final String[][] BENCHMARKS = {
+        {"int loop", "bint I = 0;\nbint S = 0;\n"
+                + "tillWhenBro (I < 20000000) {\n    S = S + I % 7;\n    I = I + 1;\n}\ndekhana(S);\n"},
+        {"float loop", "bint I = 0;\nbfloat X = 0.0;\n"
+                + "tillWhenBro (I < 20000000) {\n    X = X * 0.5 + I;\n    I = I + 1;\n}\ndekhana(X);\n"},
+        {"nested if", "bint I = 0;\nbint J = 0;\nbint C = 0;\n"
+                + "tillWhenBro (I < 4000) {\n    J = 0;\n    tillWhenBro (J < 4000) {\n"
+                + "        bhaiagar ((I + J) % 3 == 0) { C = C + 1; } agarwarna (J > I) { C = C - 1; }\n"
+                + "        J = J + 1;\n    }\n    I = I + 1;\n}\ndekhana(C);\n"},
+        {"calls", "bint T = 0;\nchaleye ADD(bint A) {\n    T = T + A;\n}\nbint I = 0;\n"
+                + "tillWhenBro (I < 5000000) {\n    ADD(I);\n    I = I + 1;\n}\ndekhana(T);\n"},
+    };
+
+    private static void benchmark() throws IOException {
+        System.out.println("\nInterpreter Benchmark:");
+        System.out.println("+------------+----------------+------------+------------------+");
+        System.out.println("| Program    | Ops            | Time (ms)  | Ops/sec          |");
+        System.out.println("+------------+----------------+------------+------------------+");
+        for (String[] benchmark : BENCHMARKS) {
+            BhaiCharaParser.CompilationUnit unit = BhaiCharaParser.compile(benchmark[1]);
+            Program program = compile(unit);
+            if (!unit.errors.isEmpty()) {
+                throw new IllegalStateException(benchmark[0] + ": " + unit.errors);
+            }
+            long best = Long.MAX_VALUE;
+            long steps = 0;
+            for (int round = 0; round < 5; round++) {
+                long start = System.nanoTime();
+                steps = run(program, new BufferedReader(new StringReader("")), Writer.nullWriter());
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            System.out.printf("| %-10s | %-14d | %-10.1f | %-16.3e |\n", benchmark[0], steps, best / 1e6,
+                    steps / (best / 1e9));
+        }
+        System.out.println("+------------+----------------+------------+------------------+");
+    }
+}
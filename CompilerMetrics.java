@@ -0,0 +1,235 @@
+
+import com.sun.management.ThreadMXBean;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+// Per-phase wall time, allocation and counts for BhaiCharaParser and RegexToDFA. A phase brackets
+// its work with begin() and end(). While metrics are enabled the totals add up here, and whenever
+// a Flight Recorder recording enables bhaichara.CompilerPhase each phase also commits one event,
+// so compiler phases line up with GC in the same recording. With both off begin() returns null,
+// and a phase costs one event allocation, which escape analysis removes, and a null check.
+public class CompilerMetrics {
+
+    // What items and edges count, per phase
+    public enum Phase {
+        TOKENIZE,       // tokens
+        PARSE,          // tree nodes
+        SYMBOL_TABLE,   // declarations and lookups, timed inside PARSE
+        POSTFIX,        // postfix length
+        NFA,            // states and edges
+        DFA,            // states and transitions; also the subset construction queue depth
+        MINIMIZE        // states and transitions after minimization
+    }
+
+    public static class Totals {
+
+        public long calls;
+        public long nanos;
+        public long allocatedBytes;
+        public long items;
+        public long edges;
+        public long maxQueueDepth;
+
+        Totals copy() {
+            Totals copy = new Totals();
+            copy.calls = calls;
+            copy.nanos = nanos;
+            copy.allocatedBytes = allocatedBytes;
+            copy.items = items;
+            copy.edges = edges;
+            copy.maxQueueDepth = maxQueueDepth;
+            return copy;
+        }
+    }
+
+    @Name("bhaichara.CompilerPhase")
+    @Label("Compiler Phase")
+    @Category({"Bhai Chara", "Compiler"})
+    @Description("One run of a lexer, parser or automaton construction phase")
+    @StackTrace(false)
+    static class PhaseEvent extends Event {
+
+        @Label("Phase")
+        String phase;
+
+        @Label("Items")
+        long items;
+
+        @Label("Edges")
+        long edges;
+
+        @Label("Queue Depth")
+        long queueDepth;
+
+        @Label("Allocated")
+        @DataAmount
+        long allocated;
+
+        // Equal to the duration except for SYMBOL_TABLE, whose event spans the whole parse
+        @Label("Active Time")
+        @Timespan
+        long active;
+    }
+
+    // One run of a phase. nanos and allocated hold running totals, less the start values while the
+    // span is running, so a span can be paused and resumed to time work interleaved with another phase.
+    static class Span {
+
+        final Phase phase;
+        final PhaseEvent event;
+        boolean running;
+        long nanos;
+        long allocated;
+
+        Span(Phase phase, PhaseEvent event) {
+            this.phase = phase;
+            this.event = event;
+        }
+
+        void resume() {
+            running = true;
+            nanos -= System.nanoTime();
+            allocated -= allocatedBytes();
+        }
+
+        void pause() {
+            running = false;
+            nanos += System.nanoTime();
+            allocated += allocatedBytes();
+        }
+    }
+
+    private static final ThreadMXBean THREADS = threadBean();
+    private static final Map<Phase, Totals> TOTALS = new EnumMap<>(Phase.class);
+    private static volatile boolean enabled;
+
+    static {
+        for (Phase phase : Phase.values()) {
+            TOTALS.put(phase, new Totals());
+        }
+    }
+
+    public static void enable() {
+        enabled = true;
+    }
+
+    public static void disable() {
+        enabled = false;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static Map<Phase, Totals> snapshot() {
+        Map<Phase, Totals> snapshot = new EnumMap<>(Phase.class);
+        synchronized (TOTALS) {
+            TOTALS.forEach((phase, totals) -> snapshot.put(phase, totals.copy()));
+        }
+        return snapshot;
+    }
+
+    public static void reset() {
+        synchronized (TOTALS) {
+            for (Phase phase : Phase.values()) {
+                TOTALS.put(phase, new Totals());
+            }
+        }
+    }
+
+    static Span begin(Phase phase) {
+        Span span = open(phase);
+        if (span != null) {
+            span.resume();
+        }
+        return span;
+    }
+
+    // For work spread through another phase: the span only counts between resume() and pause()
+    static Span beginPaused(Phase phase) {
+        return open(phase);
+    }
+
+    private static Span open(Phase phase) {
+        PhaseEvent event = new PhaseEvent();
+        if (!enabled && !event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return new Span(phase, event);
+    }
+
+    static void end(Span span, long items) {
+        end(span, items, 0, 0);
+    }
+
+    static void end(Span span, long items, long edges) {
+        end(span, items, edges, 0);
+    }
+
+    static void end(Span span, long items, long edges, long queueDepth) {
+        if (span == null) {
+            return;
+        }
+        if (span.running) {
+            span.pause();
+        }
+        if (enabled) {
+            synchronized (TOTALS) {
+                Totals totals = TOTALS.get(span.phase);
+                totals.calls++;
+                totals.nanos += span.nanos;
+                totals.allocatedBytes += span.allocated;
+                totals.items += items;
+                totals.edges += edges;
+                totals.maxQueueDepth = Math.max(totals.maxQueueDepth, queueDepth);
+            }
+        }
+        PhaseEvent event = span.event;
+        event.end();
+        if (event.shouldCommit()) {
+            event.phase = span.phase.name();
+            event.items = items;
+            event.edges = edges;
+            event.queueDepth = queueDepth;
+            event.allocated = span.allocated;
+            event.active = span.nanos;
+            event.commit();
+        }
+    }
+
+    public static void displayMetrics() {
+        System.out.println("\nCompiler Phases:");
+        System.out.println("+--------------+---------+------------+--------------+--------------+--------------+-----------+");
+        System.out.println("| Phase        | Calls   | Time (ms)  | Allocated MB | Items        | Edges        | Max queue |");
+        System.out.println("+--------------+---------+------------+--------------+--------------+--------------+-----------+");
+        snapshot().forEach((phase, totals) -> System.out.printf("| %-12s | %-7d | %-10.3f | %-12.2f | %-12d | %-12d | %-9d |\n",
+                phase, totals.calls, totals.nanos / 1e6, totals.allocatedBytes / 1e6, totals.items, totals.edges,
+                totals.maxQueueDepth));
+        System.out.println("+--------------+---------+------------+--------------+--------------+--------------+-----------+");
+    }
+
+    // Bytes allocated so far by the current thread, or 0 where the JVM does not track it
+    private static long allocatedBytes() {
+        return THREADS != null ? Math.max(0, THREADS.getCurrentThreadAllocatedBytes()) : 0;
+    }
+
+    private static ThreadMXBean threadBean() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof ThreadMXBean && ((ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            return (ThreadMXBean) bean;
+        }
+        return null;
+    }
+}
@@ -1,92 +1,1366 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 public class RegexToDFA {
 
+    // A sub-automaton. Its states and edges were created in one run, from firstState and firstEdge up
+    // to whatever came next, which is what lets a bounded repeat copy it.
     private static class Fragment {
 
         int start;
         int accept;
+        int firstState;
+        int firstEdge;
 
         Fragment(int start, int accept) {
             this.start = start;
             this.accept = accept;
         }
+
+        Fragment(int start, int accept, int firstState, int firstEdge) {
+            this(start, accept);
+            this.firstState = firstState;
+            this.firstEdge = firstEdge;
+        }
     }
 
-    private static int stateCounter = 0;
-    private static Map<Integer, Map<Character, Set<Integer>>> nfaTransitions = new HashMap<>();
-    private static int nfaStart;
-    private static int nfaAccept;
+    // Cursor over regex syntax. Atoms are read the same way from a pattern and from its postfix form,
+    // which writes every atom back in canonical syntax: classes as sorted ranges, and escapes for
+    // operators and for anything outside printable ASCII.
+    private static class RegexReader {
 
-    private static int createState() {
-        return stateCounter++;
+        // Code point ranges as flat lo, hi pairs. ANY is '.', every code point but line terminators.
+        static final int[] DIGIT = {'0', '9'};
+        static final int[] WORD = {'0', '9', 'A', 'Z', '_', '_', 'a', 'z'};
+        static final int[] SPACE = {'\t', '\r', ' ', ' '};
+        static final int[] ANY = complement(new int[]{'\n', '\n', '\r', '\r', 0x85, 0x85, 0x2028, 0x2029});
+
+        final String text;
+        int pos;
+
+        RegexReader(String text) {
+            this.text = text;
+        }
+
+        boolean atEnd() {
+            return pos >= text.length();
+        }
+
+        int peek() {
+            return text.codePointAt(pos);
+        }
+
+        int next() {
+            int c = text.codePointAt(pos);
+            pos += Character.charCount(c);
+            return c;
+        }
+
+        IllegalArgumentException error(String message, int at) {
+            return new IllegalArgumentException(message + " at index " + at + " in regex: " + text);
+        }
+
+        // After '\': the ranges of a class escape, or a single code point as {c, c}
+        int[] escape() {
+            int at = pos - 1;
+            if (atEnd()) {
+                throw error("Trailing '\\'", at);
+            }
+            int c = next();
+            switch (c) {
+                case 'd':
+                    return DIGIT;
+                case 'D':
+                    return complement(DIGIT);
+                case 'w':
+                    return WORD;
+                case 'W':
+                    return complement(WORD);
+                case 's':
+                    return SPACE;
+                case 'S':
+                    return complement(SPACE);
+                case 't':
+                    return new int[]{'\t', '\t'};
+                case 'n':
+                    return new int[]{'\n', '\n'};
+                case 'r':
+                    return new int[]{'\r', '\r'};
+                case 'f':
+                    return new int[]{'\f', '\f'};
+                case 'x':
+                    return hexEscape(at);
+                case 'u':
+                    return hexDigits(4, at);
+                default:
+                    if (Character.isLetterOrDigit(c)) {
+                        throw error("Unknown escape '\\" + new String(Character.toChars(c)) + "'", at);
+                    }
+                    return new int[]{c, c};
+            }
+        }
+
+        // \xhh or \x{h...}
+        private int[] hexEscape(int at) {
+            if (atEnd() || peek() != '{') {
+                return hexDigits(2, at);
+            }
+            pos++;
+            int end = text.indexOf('}', pos);
+            if (end < 0 || end == pos || end - pos > 6) {
+                throw error("Malformed \\x{...} escape", at);
+            }
+            int[] c = hexDigits(end - pos, at);
+            pos++;
+            return c;
+        }
+
+        private int[] hexDigits(int count, int at) {
+            if (pos + count > text.length()) {
+                throw error("Malformed hex escape", at);
+            }
+            int c;
+            try {
+                c = Integer.parseInt(text.substring(pos, pos + count), 16);
+            } catch (NumberFormatException e) {
+                throw error("Malformed hex escape", at);
+            }
+            if (c > Character.MAX_CODE_POINT) {
+                throw error("Code point out of range", at);
+            }
+            pos += count;
+            return new int[]{c, c};
+        }
+
+        // After '[': items up to the closing ']'. A leading '^' negates; '-' between two characters
+        // makes a range and is literal anywhere else.
+        int[] charClass() {
+            int at = pos - 1;
+            boolean negated = !atEnd() && peek() == '^';
+            if (negated) {
+                pos++;
+            }
+            List<int[]> parts = new ArrayList<>();
+            while (true) {
+                if (atEnd()) {
+                    throw error("Unclosed character class", at);
+                }
+                int c = next();
+                if (c == ']') {
+                    break;
+                }
+                int[] item = c == '\\' ? escape() : new int[]{c, c};
+                boolean single = item.length == 2 && item[0] == item[1];
+                if (single && pos + 1 < text.length() && text.charAt(pos) == '-' && text.charAt(pos + 1) != ']') {
+                    int rangeAt = pos;
+                    pos++;
+                    int d = next();
+                    int[] to = d == '\\' ? escape() : new int[]{d, d};
+                    if (to.length != 2 || to[0] != to[1] || to[0] < item[0]) {
+                        throw error("Bad character range", rangeAt);
+                    }
+                    item = new int[]{item[0], to[0]};
+                }
+                parts.add(item);
+            }
+            if (parts.isEmpty()) {
+                throw error("Empty character class", at);
+            }
+            int[] ranges = union(parts);
+            return negated ? complement(ranges) : ranges;
+        }
+
+        // After '{': min and max of a bounded repeat, max -1 when open-ended
+        int[] repeat() {
+            int at = pos - 1;
+            int end = text.indexOf('}', pos);
+            if (end < 0) {
+                throw error("Unclosed repeat", at);
+            }
+            String[] bounds = text.substring(pos, end).split(",", -1);
+            pos = end + 1;
+            try {
+                if (bounds.length == 1) {
+                    int count = Integer.parseInt(bounds[0]);
+                    return checkRepeat(count, count, at);
+                }
+                if (bounds.length == 2) {
+                    int min = Integer.parseInt(bounds[0]);
+                    return checkRepeat(min, bounds[1].isEmpty() ? -1 : Integer.parseInt(bounds[1]), at);
+                }
+            } catch (NumberFormatException e) {
+                // Reported below
+            }
+            throw error("Malformed repeat", at);
+        }
+
+        private int[] checkRepeat(int min, int max, int at) {
+            if (min < 0 || (max >= 0 && max < min)) {
+                throw error("Bad repeat bounds", at);
+            }
+            if (Math.max(min, max) > MAX_REPEAT) {
+                throw error("Repeat count over " + MAX_REPEAT, at);
+            }
+            return new int[]{min, max};
+        }
+
+        static int[] union(List<int[]> parts) {
+            List<int[]> pairs = new ArrayList<>();
+            for (int[] part : parts) {
+                for (int i = 0; i < part.length; i += 2) {
+                    pairs.add(new int[]{part[i], part[i + 1]});
+                }
+            }
+            pairs.sort((a, b) -> Integer.compare(a[0], b[0]));
+            int[] ranges = new int[pairs.size() * 2];
+            int count = 0;
+            for (int[] pair : pairs) {
+                if (count > 0 && pair[0] <= ranges[count - 1] + 1) {
+                    ranges[count - 1] = Math.max(ranges[count - 1], pair[1]);
+                } else {
+                    ranges[count++] = pair[0];
+                    ranges[count++] = pair[1];
+                }
+            }
+            return Arrays.copyOf(ranges, count);
+        }
+
+        // Surrogates are not code points, so a complement never includes them
+        static int[] complement(int[] ranges) {
+            List<int[]> gaps = new ArrayList<>();
+            int from = 0;
+            for (int i = 0; i < ranges.length; i += 2) {
+                if (ranges[i] > from) {
+                    gaps.add(new int[]{from, ranges[i] - 1});
+                }
+                from = ranges[i + 1] + 1;
+            }
+            if (from <= Character.MAX_CODE_POINT) {
+                gaps.add(new int[]{from, Character.MAX_CODE_POINT});
+            }
+            List<int[]> result = new ArrayList<>();
+            for (int[] gap : gaps) {
+                if (gap[0] < Character.MIN_SURROGATE) {
+                    result.add(new int[]{gap[0], Math.min(gap[1], Character.MIN_SURROGATE - 1)});
+                }
+                if (gap[1] > Character.MAX_SURROGATE) {
+                    result.add(new int[]{Math.max(gap[0], Character.MAX_SURROGATE + 1), gap[1]});
+                }
+            }
+            return union(result);
+        }
+
+        static void appendClass(StringBuilder out, int[] ranges) {
+            if (ranges.length == 2 && ranges[0] == ranges[1]) {
+                appendLiteral(out, ranges[0], false);
+                return;
+            }
+            out.append('[');
+            for (int i = 0; i < ranges.length; i += 2) {
+                appendLiteral(out, ranges[i], true);
+                if (ranges[i + 1] != ranges[i]) {
+                    out.append('-');
+                    appendLiteral(out, ranges[i + 1], true);
+                }
+            }
+            out.append(']');
+        }
+
+        private static void appendLiteral(StringBuilder out, int c, boolean inClass) {
+            if (c < 0x20 || c > 0x7E) {
+                out.append("\\x{").append(Integer.toHexString(c)).append('}');
+            } else if (inClass ? "\\[]^-".indexOf(c) >= 0 : "\\|()*+?[]{}.".indexOf(c) >= 0) {
+                out.append('\\').append((char) c);
+            } else {
+                out.append((char) c);
+            }
+        }
+    }
+
+    static class LexerRule {
+
+        String pattern;
+        boolean literal;
+        int priority;
+
+        LexerRule(String pattern, boolean literal, int priority) {
+            this.pattern = pattern;
+            this.literal = literal;
+            this.priority = priority;
+        }
     }
 
-    private static void addTransition(int from, char symbol, int to) {
-        nfaTransitions.putIfAbsent(from, new HashMap<>());
-        Map<Character, Set<Integer>> transitions = nfaTransitions.get(from);
-        transitions.putIfAbsent(symbol, new HashSet<>());
-        transitions.get(symbol).add(to);
+    static class LexerTable {
+
+        int[] classMap;
+        int numClasses;
+        int[] transitions;
+        int[] acceptRule;
+        int start;
+
+        LexerTable(int[] classMap, int numClasses, int[] transitions, int[] acceptRule, int start) {
+            this.classMap = classMap;
+            this.numClasses = numClasses;
+            this.transitions = transitions;
+            this.acceptRule = acceptRule;
+            this.start = start;
+        }
+
+        int next(int state, char c) {
+            int cls = c < classMap.length ? classMap[c] : 0;
+            return transitions[state * numClasses + cls];
+        }
     }
 
-    private static String addConcat(String regex) {
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < regex.length(); i++) {
-            char c1 = regex.charAt(i);
-            sb.append(c1);
-            if (i < regex.length() - 1) {
-                char c2 = regex.charAt(i + 1);
-                boolean c1IsOperator = isOperator(c1) || c1 == '(' || c1 == ')';
-                boolean c2IsOperator = isOperator(c2) || c2 == '(' || c2 == ')';
-                boolean c1NeedsConcat = !c1IsOperator || c1 == ')' || c1 == '*';
-                boolean c2NeedsConcat = !c2IsOperator || c2 == '(';
-                if (c1NeedsConcat && c2NeedsConcat) {
-                    sb.append('·');
+    // On-the-fly subset construction in the style of RE2. DFA states are built from the NFA only
+    // when the input first reaches them and are kept in a cache bounded by memoryLimit bytes. A full
+    // cache is flushed; when flushes keep coming with little input consumed in between, the match
+    // is finished by plain NFA simulation. Not thread-safe, use one instance per thread.
+    static class LazyDFA {
+
+        private static final int UNKNOWN = -2;
+        private static final int DEAD = -1;
+        private static final int MIN_CHARS_PER_STATE = 10;
+        private static final int MAX_BAD_FLUSHES = 3;
+
+        final int[] edgeStart;
+        final char[] edgeLo;
+        final char[] edgeHi;
+        final int[] edgeTarget;
+        final int[] epsilonStart;
+        final int[] epsilonTarget;
+        final int start;
+        final int accept;
+        final int[] classMap;
+        final int numClasses;
+        final int[] classRep;
+        final long memoryLimit;
+
+        int stateCount;
+        int startState = -1;
+        int[] transitions;
+        int[] setStart = new int[16];
+        int[] setPool = new int[64];
+        int[] setHash = new int[16];
+        int[] table = new int[32];
+        boolean[] accepting = new boolean[16];
+        long memoryUsed;
+        int flushCount;
+        int nfaFallbackCount;
+
+        private final int[] seen;
+        private int stamp;
+        private int[] current;
+        private int[] next;
+
+        LazyDFA(RegexToDFA nfa, long memoryLimit) {
+            nfa.freezeNFA();
+            nfa.computeClasses();
+            edgeStart = nfa.nfaEdgeStart;
+            edgeLo = nfa.nfaEdgeLo;
+            edgeHi = nfa.nfaEdgeHi;
+            edgeTarget = nfa.nfaEdgeTarget;
+            epsilonStart = nfa.nfaEpsilonStart;
+            epsilonTarget = nfa.nfaEpsilonTarget;
+            start = nfa.nfaStart;
+            accept = nfa.nfaAccept;
+            this.memoryLimit = memoryLimit;
+            classMap = nfa.classMap;
+            numClasses = nfa.classCount;
+            classRep = nfa.classRep;
+            transitions = new int[16 * numClasses];
+
+            int n = edgeStart.length - 1;
+            seen = new int[n];
+            current = new int[n];
+            next = new int[n];
+            Arrays.fill(table, -1);
+        }
+
+        boolean matches(CharSequence input) {
+            if (startState < 0) {
+                current[0] = start;
+                startState = addState(current, closure(current, 1));
+            }
+            int state = startState;
+            int charsSinceFlush = 0;
+            int badFlushes = 0;
+
+            for (int i = 0; i < input.length(); i++) {
+                char c = input.charAt(i);
+                int cls = c < classMap.length ? classMap[c] : 0;
+                int target = transitions[state * numClasses + cls];
+                if (target == UNKNOWN) {
+                    int flushesBefore = flushCount;
+                    int statesBefore = stateCount;
+                    target = computeTransition(state, cls);
+                    if (flushCount != flushesBefore) {
+                        badFlushes = charsSinceFlush < MIN_CHARS_PER_STATE * statesBefore ? badFlushes + 1 : 0;
+                        charsSinceFlush = 0;
+                        if (badFlushes >= MAX_BAD_FLUSHES && target != DEAD) {
+                            nfaFallbackCount++;
+                            return simulateNFA(target, input, i + 1);
+                        }
+                    }
+                }
+                if (target == DEAD) {
+                    return false;
+                }
+                state = target;
+                charsSinceFlush++;
+            }
+            return accepting[state];
+        }
+
+        private int computeTransition(int state, int cls) {
+            int size = 0;
+            int c = classRep[cls];
+            newStamp();
+            for (int i = setStart[state]; i < setStart[state + 1]; i++) {
+                int s = setPool[i];
+                for (int e = edgeStart[s]; e < edgeStart[s + 1]; e++) {
+                    int t = edgeTarget[e];
+                    if (edgeLo[e] <= c && c <= edgeHi[e] && seen[t] != stamp) {
+                        seen[t] = stamp;
+                        next[size++] = t;
+                    }
+                }
+            }
+            if (size == 0) {
+                transitions[state * numClasses + cls] = DEAD;
+                return DEAD;
+            }
+            size = closure(next, size);
+
+            int target = findState(next, size);
+            if (target >= 0) {
+                transitions[state * numClasses + cls] = target;
+                return target;
+            }
+            long cost = stateCost(size);
+            if (memoryUsed + cost > memoryLimit) {
+                flush();
+                return addState(next, size);
+            }
+            target = addState(next, size);
+            transitions[state * numClasses + cls] = target;
+            return target;
+        }
+
+        private int closure(int[] states, int count) {
+            newStamp();
+            for (int i = 0; i < count; i++) {
+                seen[states[i]] = stamp;
+            }
+            for (int i = 0; i < count; i++) {
+                int s = states[i];
+                for (int e = epsilonStart[s]; e < epsilonStart[s + 1]; e++) {
+                    int t = epsilonTarget[e];
+                    if (seen[t] != stamp) {
+                        seen[t] = stamp;
+                        states[count++] = t;
+                    }
+                }
+            }
+            Arrays.sort(states, 0, count);
+            return count;
+        }
+
+        private void newStamp() {
+            if (++stamp == Integer.MAX_VALUE) {
+                Arrays.fill(seen, 0);
+                stamp = 1;
+            }
+        }
+
+        private int findState(int[] set, int size) {
+            int hash = hash(set, size);
+            int mask = table.length - 1;
+            for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+                int id = table[slot];
+                if (id < 0) {
+                    return -1;
+                }
+                if (setHash[id] == hash && setStart[id + 1] - setStart[id] == size
+                        && Arrays.equals(setPool, setStart[id], setStart[id + 1], set, 0, size)) {
+                    return id;
                 }
             }
         }
-        return sb.toString();
+
+        private int addState(int[] set, int size) {
+            int id = stateCount++;
+            if (id + 1 == setStart.length) {
+                setStart = Arrays.copyOf(setStart, setStart.length * 2);
+                setHash = Arrays.copyOf(setHash, setStart.length);
+                accepting = Arrays.copyOf(accepting, setStart.length);
+            }
+            if ((id + 1) * numClasses > transitions.length) {
+                transitions = Arrays.copyOf(transitions, transitions.length * 2);
+            }
+            Arrays.fill(transitions, id * numClasses, (id + 1) * numClasses, UNKNOWN);
+            int from = setStart[id];
+            if (from + size > setPool.length) {
+                setPool = Arrays.copyOf(setPool, Math.max(setPool.length * 2, from + size));
+            }
+            System.arraycopy(set, 0, setPool, from, size);
+            setStart[id + 1] = from + size;
+            setHash[id] = hash(set, size);
+            accepting[id] = Arrays.binarySearch(set, 0, size, accept) >= 0;
+            memoryUsed += stateCost(size);
+
+            if (stateCount * 2 > table.length) {
+                table = new int[table.length * 2];
+                Arrays.fill(table, -1);
+                for (int other = 0; other < stateCount; other++) {
+                    insert(other);
+                }
+            } else {
+                insert(id);
+            }
+            return id;
+        }
+
+        private void insert(int id) {
+            int mask = table.length - 1;
+            int slot = setHash[id] & mask;
+            while (table[slot] >= 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = id;
+        }
+
+        private void flush() {
+            stateCount = 0;
+            startState = -1;
+            memoryUsed = 0;
+            Arrays.fill(table, -1);
+            flushCount++;
+        }
+
+        private long stateCost(int size) {
+            // transition row, NFA set, and the start/hash/table/accept bookkeeping
+            return 4L * numClasses + 4L * size + 16;
+        }
+
+        private boolean simulateNFA(int state, CharSequence input, int from) {
+            int size = setStart[state + 1] - setStart[state];
+            System.arraycopy(setPool, setStart[state], current, 0, size);
+            for (int i = from; i < input.length() && size > 0; i++) {
+                char c = input.charAt(i);
+                int moved = 0;
+                newStamp();
+                for (int j = 0; j < size; j++) {
+                    int s = current[j];
+                    for (int e = edgeStart[s]; e < edgeStart[s + 1]; e++) {
+                        int t = edgeTarget[e];
+                        if (edgeLo[e] <= c && c <= edgeHi[e] && seen[t] != stamp) {
+                            seen[t] = stamp;
+                            next[moved++] = t;
+                        }
+                    }
+                }
+                size = closure(next, moved);
+                int[] swap = current;
+                current = next;
+                next = swap;
+            }
+            return size > 0 && Arrays.binarySearch(current, 0, size, accept) >= 0;
+        }
+
+        private static int hash(int[] set, int size) {
+            int hash = 1;
+            for (int i = 0; i < size; i++) {
+                hash = 31 * hash + set[i];
+            }
+            return hash ^ (hash >>> 16);
+        }
     }
 
-    private static String regexToPostfix(String regex) {
-        String modifiedRegex = addConcat(regex);
-        StringBuilder output = new StringBuilder();
-        Stack<Character> stack = new Stack<>();
+    public static class Match {
+
+        public final long start;
+        public final long end;
+        public final String text;
+
+        Match(long start, long end, String text) {
+            this.start = start;
+            this.end = end;
+            this.text = text;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + start + ", " + end + ") " + text;
+        }
+    }
+
+    // Immutable minimized DFA, safe to share between threads. find and findAll report
+    // leftmost-longest, non-overlapping matches; an empty match advances the search by one char.
+    public static class CompiledPattern {
+
+        private static final int CHUNK_SIZE = 8192;
+
+        final String regex;
+        final int[] classMap;
+        final int numClasses;
+        final int[] transitions;
+        final boolean[] accepting;
+        final int start;
+
+        CompiledPattern(String regex, int[] classMap, int numClasses, int[] transitions, boolean[] accepting, int start) {
+            this.regex = regex;
+            this.classMap = classMap;
+            this.numClasses = numClasses;
+            this.transitions = transitions;
+            this.accepting = accepting;
+            this.start = start;
+        }
+
+        // Same tables under another spelling of the regex
+        CompiledPattern(String regex, CompiledPattern tables) {
+            this(regex, tables.classMap, tables.numClasses, tables.transitions, tables.accepting, tables.start);
+        }
+
+        long memoryFootprint() {
+            return arrayBytes(classMap.length, 4) + arrayBytes(transitions.length, 4) + arrayBytes(accepting.length, 1);
+        }
+
+        public String pattern() {
+            return regex;
+        }
+
+        private int step(int state, char c) {
+            return transitions[state * numClasses + (c < classMap.length ? classMap[c] : 0)];
+        }
+
+        public boolean matches(CharSequence input) {
+            int state = start;
+            for (int i = 0; i < input.length(); i++) {
+                state = step(state, input.charAt(i));
+                if (state < 0) {
+                    return false;
+                }
+            }
+            return accepting[state];
+        }
+
+        public boolean matches(Reader reader) throws IOException {
+            char[] buffer = new char[CHUNK_SIZE];
+            int state = start;
+            int n;
+            while ((n = reader.read(buffer)) >= 0) {
+                for (int i = 0; i < n; i++) {
+                    state = step(state, buffer[i]);
+                    if (state < 0) {
+                        return false;
+                    }
+                }
+            }
+            return accepting[state];
+        }
+
+        // One leftmost-longest search, fed a char at a time so that strings and streams share it.
+        // Every position seeds a run of the DFA from its start state, and runs that reach the same
+        // state at the same position are merged, keeping the earliest start, because from there on
+        // they can only continue alike. So there are never more live runs than states and each char
+        // is read once, where restarting the DFA at every offset made a failed search quadratic.
+        // Runs are kept oldest first. Once a run accepts no more are seeded, and the younger ones
+        // are dropped; the search goes on while an older run may still accept or this one extend.
+        private static final class Search {
+
+            private final CompiledPattern pattern;
+            private int[] states;
+            private long[] starts;
+            private int[] nextStates;
+            private long[] nextStarts;
+            private final int[] claimed;
+            private int stamp;
+            private int count;
+            long pos;
+            long matchStart;
+            long matchEnd;
+
+            Search(CompiledPattern pattern) {
+                int size = pattern.accepting.length;
+                this.pattern = pattern;
+                states = new int[size];
+                starts = new long[size];
+                nextStates = new int[size];
+                nextStarts = new long[size];
+                claimed = new int[size];
+            }
+
+            void reset(long from) {
+                pos = from;
+                count = 0;
+                matchStart = -1;
+                nextStamp();
+            }
+
+            boolean found() {
+                return matchStart >= 0;
+            }
+
+            // First position the caller still needs: the oldest live run or the match
+            long keepFrom() {
+                long keep = count > 0 ? starts[0] : pos;
+                return matchStart >= 0 ? Math.min(keep, matchStart) : keep;
+            }
+
+            // Steps every run over the char at pos; false once the match can no longer change
+            boolean advance(char c) {
+                if (!atPosition()) {
+                    return false;
+                }
+                nextStamp();
+                int next = 0;
+                for (int i = 0; i < count; i++) {
+                    int state = pattern.step(states[i], c);
+                    if (state >= 0 && claimed[state] != stamp) {
+                        claimed[state] = stamp;
+                        nextStates[next] = state;
+                        nextStarts[next++] = starts[i];
+                    }
+                }
+                int[] swapStates = states;
+                states = nextStates;
+                nextStates = swapStates;
+                long[] swapStarts = starts;
+                starts = nextStarts;
+                nextStarts = swapStarts;
+                count = next;
+                pos++;
+                return true;
+            }
+
+            // At the end of the input
+            void finish() {
+                atPosition();
+            }
+
+            private boolean atPosition() {
+                if (matchStart < 0 && claimed[pattern.start] != stamp) {
+                    claimed[pattern.start] = stamp;
+                    states[count] = pattern.start;
+                    starts[count++] = pos;
+                }
+                for (int i = 0; i < count; i++) {
+                    if (pattern.accepting[states[i]]) {
+                        if (matchStart < 0 || starts[i] <= matchStart) {
+                            matchStart = starts[i];
+                            matchEnd = pos;
+                        }
+                        while (count > 0 && starts[count - 1] > matchStart) {
+                            count--;
+                        }
+                        break;
+                    }
+                }
+                return matchStart < 0 || count > 0;
+            }
+
+            private void nextStamp() {
+                if (++stamp == Integer.MAX_VALUE) {
+                    Arrays.fill(claimed, 0);
+                    stamp = 1;
+                }
+            }
+        }
+
+        public Match find(CharSequence input) {
+            return find(input, 0);
+        }
+
+        public Match find(CharSequence input, int from) {
+            Search search = new Search(this);
+            return find(input, from, search) ? match(input, search) : null;
+        }
+
+        public List<Match> findAll(CharSequence input) {
+            List<Match> matches = new ArrayList<>();
+            Search search = new Search(this);
+            int pos = 0;
+            while (pos <= input.length() && find(input, pos, search)) {
+                matches.add(match(input, search));
+                pos = (int) (search.matchEnd > search.matchStart ? search.matchEnd : search.matchStart + 1);
+            }
+            return matches;
+        }
+
+        private static boolean find(CharSequence input, int from, Search search) {
+            search.reset(from);
+            boolean running = true;
+            for (int i = from; running && i < input.length(); i++) {
+                running = search.advance(input.charAt(i));
+            }
+            if (running) {
+                search.finish();
+            }
+            return search.found();
+        }
+
+        private static Match match(CharSequence input, Search search) {
+            int start = (int) search.matchStart;
+            int end = (int) search.matchEnd;
+            return new Match(start, end, input.subSequence(start, end).toString());
+        }
+
+        // Reads the input in chunks and keeps only the characters from the oldest live run of the
+        // current search onwards, so memory is bounded by the longest attempt, not the input size.
+        public void findAll(Reader reader, Consumer<Match> handler) throws IOException {
+            char[] buffer = new char[CHUNK_SIZE];
+            int length = 0;
+            long offset = 0;
+            boolean eof = false;
+            Search search = new Search(this);
+            search.reset(0);
+
+            while (true) {
+                boolean running;
+                if (search.pos < offset + length) {
+                    running = search.advance(buffer[(int) (search.pos - offset)]);
+                } else if (!eof) {
+                    int keep = (int) (Math.min(search.keepFrom(), offset + length) - offset);
+                    if (keep > 0) {
+                        System.arraycopy(buffer, keep, buffer, 0, length - keep);
+                        offset += keep;
+                        length -= keep;
+                    }
+                    if (length == buffer.length) {
+                        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                    }
+                    int n = reader.read(buffer, length, buffer.length - length);
+                    if (n < 0) {
+                        eof = true;
+                    } else {
+                        length += n;
+                    }
+                    continue;
+                } else {
+                    search.finish();
+                    running = false;
+                }
+                if (running) {
+                    continue;
+                }
+                if (!search.found()) {
+                    return;
+                }
+                long start = search.matchStart;
+                long end = search.matchEnd;
+                handler.accept(new Match(start, end, new String(buffer, (int) (start - offset), (int) (end - start))));
+                long next = end > start ? end : start + 1;
+                if (eof && next > offset + length) {
+                    return;
+                }
+                search.reset(next);
+            }
+        }
+
+        public void findAll(ReadableByteChannel channel, Charset charset, Consumer<Match> handler) throws IOException {
+            findAll(Channels.newReader(channel, charset.newDecoder(), CHUNK_SIZE), handler);
+        }
+    }
+
+    // Thread-safe LRU cache of compiled patterns, bounded by memoryLimit bytes of DFA tables. Keys
+    // are the postfix form, so spellings that differ only in redundant parentheses share an entry.
+    // A miss compiles outside the lock; two threads missing on the same key both compile and the
+    // first to finish is kept. A pattern larger than the whole limit is returned but never cached.
+    //
+    // save writes every entry to a snapshot file, least recently used first, and load maps one back
+    // in with its tables bulk-copied out of the mapping, so a cold start skips subset construction
+    // and minimization. Snapshots carry a format version and are rejected when it does not match.
+    public static class PatternCache {
+
+        private static final int SNAPSHOT_MAGIC = 0x42444641;
+        private static final int SNAPSHOT_VERSION = 2;
+
+        final long memoryLimit;
+        private final LinkedHashMap<String, CompiledPattern> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private long memoryUsed;
+        private long hits;
+        private long misses;
+        private long evictions;
+
+        public PatternCache(long memoryLimit) {
+            this.memoryLimit = memoryLimit;
+        }
+
+        public CompiledPattern get(String regex) {
+            String key = regexToPostfix(regex);
+            CompiledPattern pattern;
+            synchronized (this) {
+                pattern = entries.get(key);
+                if (pattern != null) {
+                    hits++;
+                } else {
+                    misses++;
+                }
+            }
+            if (pattern == null) {
+                pattern = put(key, compile(regex));
+            }
+            return pattern.regex.equals(regex) ? pattern : new CompiledPattern(regex, pattern);
+        }
+
+        // Returns the entry already cached under key, if another thread got there first
+        private synchronized CompiledPattern put(String key, CompiledPattern pattern) {
+            CompiledPattern existing = entries.get(key);
+            if (existing != null) {
+                return existing;
+            }
+            long cost = pattern.memoryFootprint();
+            if (cost > memoryLimit) {
+                return pattern;
+            }
+            Iterator<CompiledPattern> eldest = entries.values().iterator();
+            while (memoryUsed + cost > memoryLimit) {
+                memoryUsed -= eldest.next().memoryFootprint();
+                eldest.remove();
+                evictions++;
+            }
+            entries.put(key, pattern);
+            memoryUsed += cost;
+            return pattern;
+        }
+
+        public synchronized int size() {
+            return entries.size();
+        }
+
+        public synchronized long memoryUsed() {
+            return memoryUsed;
+        }
+
+        public synchronized long hits() {
+            return hits;
+        }
+
+        public synchronized long misses() {
+            return misses;
+        }
+
+        public synchronized long evictions() {
+            return evictions;
+        }
+
+        public synchronized void clear() {
+            entries.clear();
+            memoryUsed = 0;
+        }
+
+        // Written to a temporary file and moved into place, so readers never map a partial snapshot
+        public void save(Path file) throws IOException {
+            List<Map.Entry<String, CompiledPattern>> snapshot;
+            synchronized (this) {
+                snapshot = new ArrayList<>(entries.entrySet());
+            }
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeInt(SNAPSHOT_VERSION);
+                out.writeInt(snapshot.size());
+                for (Map.Entry<String, CompiledPattern> entry : snapshot) {
+                    CompiledPattern pattern = entry.getValue();
+                    writeString(out, entry.getKey());
+                    writeString(out, pattern.regex);
+                    out.writeInt(pattern.start);
+                    out.writeInt(pattern.numClasses);
+                    out.writeInt(pattern.classMap.length);
+                    for (int cls : pattern.classMap) {
+                        out.writeInt(cls);
+                    }
+                    out.writeInt(pattern.accepting.length);
+                    for (int target : pattern.transitions) {
+                        out.writeInt(target);
+                    }
+                    for (boolean accept : pattern.accepting) {
+                        out.writeByte(accept ? 1 : 0);
+                    }
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        private static void writeString(DataOutputStream out, String text) throws IOException {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        // Adds the snapshot's entries as the most recently used ones and returns how many were read.
+        // Every table is checked before anything is added, so a corrupt file changes nothing.
+        public int load(Path file) throws IOException {
+            List<String> keys = new ArrayList<>();
+            List<CompiledPattern> patterns = new ArrayList<>();
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (in.remaining() < 12 || in.getInt() != SNAPSHOT_MAGIC) {
+                    throw new IOException("Not a DFA snapshot: " + file);
+                }
+                int version = in.getInt();
+                if (version != SNAPSHOT_VERSION) {
+                    throw new IOException("Unsupported DFA snapshot version " + version + ": " + file);
+                }
+                int count = in.getInt();
+                for (int i = 0; i < count; i++) {
+                    keys.add(readString(in));
+                    patterns.add(readPattern(in));
+                }
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                throw new IOException("Corrupt DFA snapshot: " + file, e);
+            }
+            for (int i = 0; i < keys.size(); i++) {
+                put(keys.get(i), patterns.get(i));
+            }
+            return keys.size();
+        }
+
+        private static String readString(ByteBuffer in) {
+            byte[] bytes = new byte[checkedLength(in.getInt(), in.remaining())];
+            in.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private static CompiledPattern readPattern(ByteBuffer in) {
+            String regex = readString(in);
+            int start = in.getInt();
+            int numClasses = in.getInt();
+            int[] classMap = new int[checkedLength(in.getInt(), in.remaining() / 4)];
+            in.asIntBuffer().get(classMap);
+            in.position(in.position() + classMap.length * 4);
+            int states = checkedLength(in.getInt(), in.remaining());
+            if (numClasses < 1 || (long) states * numClasses > in.remaining() / 4) {
+                throw new IllegalArgumentException("Bad table size");
+            }
+            int[] transitions = new int[states * numClasses];
+            in.asIntBuffer().get(transitions);
+            in.position(in.position() + transitions.length * 4);
+            boolean[] accepting = new boolean[states];
+            for (int state = 0; state < states; state++) {
+                accepting[state] = in.get() != 0;
+            }
+
+            if (start < 0 || start >= states) {
+                throw new IllegalArgumentException("Bad start state");
+            }
+            for (int cls : classMap) {
+                if (cls < 0 || cls >= numClasses) {
+                    throw new IllegalArgumentException("Bad character class");
+                }
+            }
+            for (int target : transitions) {
+                if (target < -1 || target >= states) {
+                    throw new IllegalArgumentException("Bad transition");
+                }
+            }
+            return new CompiledPattern(regex, classMap, numClasses, transitions, accepting, start);
+        }
+
+        private static int checkedLength(int length, int available) {
+            if (length < 0 || length > available) {
+                throw new IllegalArgumentException("Bad length");
+            }
+            return length;
+        }
+    }
+
+    // Many regexes compiled into one DFA whose states carry the ids of the patterns they accept, so
+    // one pass over the input finds every pattern that matches and the cost per character does not
+    // depend on how many patterns there are. Immutable and safe to share between threads.
+    //
+    // Built with anywhere set, the DFA also restarts every pattern at each position, and match
+    // reports the patterns that match some substring rather than the whole input.
+    public static class PatternSet {
 
-        for (char c : modifiedRegex.toCharArray()) {
-            if (c == '(') {
-                stack.push(c);
-            } else if (c == ')') {
-                while (!stack.isEmpty() && stack.peek() != '(') {
-                    output.append(stack.pop());
+        final String[] patterns;
+        final int[] classMap;
+        final int numClasses;
+        final int[] transitions;
+        // State s accepts patterns acceptPool[acceptStart[s] .. acceptStart[s + 1]), in id order
+        final int[] acceptStart;
+        final int[] acceptPool;
+        final int start;
+        final boolean anywhere;
+
+        PatternSet(String[] patterns, int[] classMap, int numClasses, int[] transitions, int[] acceptStart,
+                   int[] acceptPool, int start, boolean anywhere) {
+            this.patterns = patterns;
+            this.classMap = classMap;
+            this.numClasses = numClasses;
+            this.transitions = transitions;
+            this.acceptStart = acceptStart;
+            this.acceptPool = acceptPool;
+            this.start = start;
+            this.anywhere = anywhere;
+        }
+
+        public int size() {
+            return patterns.length;
+        }
+
+        public String pattern(int id) {
+            return patterns[id];
+        }
+
+        public int stateCount() {
+            return acceptStart.length - 1;
+        }
+
+        // Ids of the matching patterns, as indices into the list the set was compiled from
+        public BitSet match(CharSequence input) {
+            BitSet matched = new BitSet();
+            int state = start;
+            if (!anywhere) {
+                for (int i = 0; i < input.length() && state >= 0; i++) {
+                    char c = input.charAt(i);
+                    state = transitions[state * numClasses + (c < classMap.length ? classMap[c] : 0)];
                 }
-                stack.pop();
-            } else if (isOperator(c)) {
-                while (!stack.isEmpty() && precedence(stack.peek()) >= precedence(c)) {
-                    output.append(stack.pop());
+                if (state >= 0) {
+                    addAccepted(state, matched);
                 }
-                stack.push(c);
+                return matched;
+            }
+
+            // Accepting states are collected as they are passed and expanded once each at the end,
+            // so the work per character stays one table lookup
+            int[] passed = new int[16];
+            int count = 0;
+            for (int i = 0; i <= input.length(); i++) {
+                if (i > 0) {
+                    char c = input.charAt(i - 1);
+                    state = transitions[state * numClasses + (c < classMap.length ? classMap[c] : 0)];
+                }
+                if (acceptStart[state] != acceptStart[state + 1] && (count == 0 || passed[count - 1] != state)) {
+                    if (count == passed.length) {
+                        passed = Arrays.copyOf(passed, count * 2);
+                    }
+                    passed[count++] = state;
+                }
+            }
+            Arrays.sort(passed, 0, count);
+            for (int i = 0; i < count; i++) {
+                if (i == 0 || passed[i] != passed[i - 1]) {
+                    addAccepted(passed[i], matched);
+                }
+            }
+            return matched;
+        }
+
+        private void addAccepted(int state, BitSet matched) {
+            for (int i = acceptStart[state]; i < acceptStart[state + 1]; i++) {
+                matched.set(acceptPool[i]);
+            }
+        }
+    }
+
+    private static final char EPSILON = 'ε';
+    private static final int MAX_REPEAT = 1000;
+    private static final int MAX_REPEAT_STATES = 100_000;
+
+    // Every RegexToDFA instance is one construction context. compile, compileLazy and buildLexer
+    // create a fresh instance per call, so concurrent compiles share nothing mutable.
+
+    // NFA edges are appended during construction and packed per state into CSR arrays by freezeNFA()
+    private int stateCounter = 0;
+    private int edgeCount = 0;
+    // Edges accept the characters edgeLo..edgeHi; an empty range (lo > hi) marks an epsilon edge,
+    // so no character is reserved for it
+    private int[] edgeFrom = new int[16];
+    private char[] edgeLo = new char[16];
+    private char[] edgeHi = new char[16];
+    private int[] edgeTo = new int[16];
+
+    private int[] nfaEdgeStart = new int[1];
+    private char[] nfaEdgeLo = new char[0];
+    private char[] nfaEdgeHi = new char[0];
+    private int[] nfaEdgeTarget = new int[0];
+    private int[] nfaEpsilonStart = new int[1];
+    private int[] nfaEpsilonTarget = new int[0];
+    private int nfaStart;
+    private int nfaAccept;
+
+    private int createState() {
+        return stateCounter++;
+    }
+
+    private void addTransition(int from, char symbol, int to) {
+        addRange(from, symbol, symbol, to);
+    }
+
+    private void addEpsilon(int from, int to) {
+        addRange(from, (char) 1, (char) 0, to);
+    }
+
+    private void addRange(int from, char lo, char hi, int to) {
+        if (edgeCount == edgeFrom.length) {
+            edgeFrom = Arrays.copyOf(edgeFrom, edgeCount * 2);
+            edgeLo = Arrays.copyOf(edgeLo, edgeCount * 2);
+            edgeHi = Arrays.copyOf(edgeHi, edgeCount * 2);
+            edgeTo = Arrays.copyOf(edgeTo, edgeCount * 2);
+        }
+        edgeFrom[edgeCount] = from;
+        edgeLo[edgeCount] = lo;
+        edgeHi[edgeCount] = hi;
+        edgeTo[edgeCount] = to;
+        edgeCount++;
+    }
+
+    private void freezeNFA() {
+        int n = stateCounter;
+        nfaEdgeStart = new int[n + 1];
+        nfaEpsilonStart = new int[n + 1];
+        for (int e = 0; e < edgeCount; e++) {
+            if (edgeLo[e] > edgeHi[e]) {
+                nfaEpsilonStart[edgeFrom[e] + 1]++;
+            } else {
+                nfaEdgeStart[edgeFrom[e] + 1]++;
+            }
+        }
+        for (int s = 0; s < n; s++) {
+            nfaEdgeStart[s + 1] += nfaEdgeStart[s];
+            nfaEpsilonStart[s + 1] += nfaEpsilonStart[s];
+        }
+
+        nfaEdgeLo = new char[nfaEdgeStart[n]];
+        nfaEdgeHi = new char[nfaEdgeStart[n]];
+        nfaEdgeTarget = new int[nfaEdgeStart[n]];
+        nfaEpsilonTarget = new int[nfaEpsilonStart[n]];
+        int[] edgeFill = Arrays.copyOf(nfaEdgeStart, n);
+        int[] epsilonFill = Arrays.copyOf(nfaEpsilonStart, n);
+        for (int e = 0; e < edgeCount; e++) {
+            int from = edgeFrom[e];
+            if (edgeLo[e] > edgeHi[e]) {
+                nfaEpsilonTarget[epsilonFill[from]++] = edgeTo[e];
             } else {
-                output.append(c);
+                nfaEdgeLo[edgeFill[from]] = edgeLo[e];
+                nfaEdgeHi[edgeFill[from]] = edgeHi[e];
+                nfaEdgeTarget[edgeFill[from]++] = edgeTo[e];
+            }
+        }
+    }
+
+    // Pattern syntax: literals, '\' escapes, [...] classes with ranges and '^', '.', \d \w \s and
+    // their negations, grouping, '|', and the repeats *, +, ?, {m}, {m,} and {m,n}. Returns the
+    // postfix form with '·' for concatenation and 'ε' for an empty operand; it doubles as a
+    // canonical spelling of the pattern.
+    static String regexToPostfix(String regex) {
+        CompilerMetrics.Span span = CompilerMetrics.begin(CompilerMetrics.Phase.POSTFIX);
+        RegexReader reader = new RegexReader(regex);
+        StringBuilder output = new StringBuilder();
+        Deque<Character> stack = new ArrayDeque<>();
+        Deque<Integer> groups = new ArrayDeque<>();
+        // Whether the last item can end an operand, so that what follows is concatenated to it
+        boolean operand = false;
+
+        while (!reader.atEnd()) {
+            int at = reader.pos;
+            int c = reader.next();
+            switch (c) {
+                case '(':
+                    if (operand) {
+                        pushOperator(stack, output, '·');
+                    }
+                    stack.push('(');
+                    groups.push(at);
+                    operand = false;
+                    break;
+                case ')':
+                    if (groups.isEmpty()) {
+                        throw reader.error("Unmatched ')'", at);
+                    }
+                    groups.pop();
+                    if (!operand) {
+                        output.append(EPSILON);
+                    }
+                    while (stack.peek() != '(') {
+                        output.append(stack.pop());
+                    }
+                    stack.pop();
+                    operand = true;
+                    break;
+                case '|':
+                    if (!operand) {
+                        output.append(EPSILON);
+                    }
+                    pushOperator(stack, output, '|');
+                    operand = false;
+                    break;
+                case '*':
+                case '+':
+                case '?':
+                case '{':
+                    if (!operand) {
+                        throw reader.error("Nothing to repeat", at);
+                    }
+                    // Postfix operators bind tightest, so they apply to the operand already written
+                    if (c == '{') {
+                        int[] bounds = reader.repeat();
+                        output.append('{').append(bounds[0]).append(',')
+                                .append(bounds[1] >= 0 ? String.valueOf(bounds[1]) : "").append('}');
+                    } else {
+                        output.append((char) c);
+                    }
+                    break;
+                default:
+                    if (operand) {
+                        pushOperator(stack, output, '·');
+                    }
+                    int[] ranges;
+                    if (c == '\\') {
+                        ranges = reader.escape();
+                    } else if (c == '[') {
+                        ranges = reader.charClass();
+                    } else if (c == '.') {
+                        ranges = RegexReader.ANY;
+                    } else if (c == ']' || c == '}') {
+                        throw reader.error("Unescaped '" + (char) c + "'", at);
+                    } else {
+                        ranges = new int[]{c, c};
+                    }
+                    RegexReader.appendClass(output, ranges);
+                    operand = true;
             }
         }
-
+        if (!groups.isEmpty()) {
+            throw reader.error("Unclosed '('", groups.peek());
+        }
+        if (!operand) {
+            output.append(EPSILON);
+        }
         while (!stack.isEmpty()) {
             output.append(stack.pop());
         }
-
+        CompilerMetrics.end(span, output.length());
         return output.toString();
     }
 
-    private static boolean isOperator(char c) {
-        return c == '|' || c == '·' || c == '*' || c == '(' || c == ')';
+    private static void pushOperator(Deque<Character> stack, StringBuilder output, char op) {
+        while (!stack.isEmpty() && precedence(stack.peek()) >= precedence(op)) {
+            output.append(stack.pop());
+        }
+        stack.push(op);
     }
 
     private static int precedence(char op) {
         switch (op) {
-            case '*':
-                return 3;
             case '·':
                 return 2;
             case '|':
@@ -96,196 +1370,1208 @@ public class RegexToDFA {
         }
     }
 
-    private static void buildNFA(String postfix) {
-        Stack<Fragment> stack = new Stack<>();
+    void buildNFA(String postfix) {
+        CompilerMetrics.Span span = CompilerMetrics.begin(CompilerMetrics.Phase.NFA);
+        Deque<Fragment> stack = new ArrayDeque<>();
+        RegexReader reader = new RegexReader(postfix);
+        int regexStart = stateCounter;
+        int edgeStart = edgeCount;
 
-        for (char c : postfix.toCharArray()) {
+        while (!reader.atEnd()) {
+            int firstState = stateCounter;
+            int firstEdge = edgeCount;
+            int c = reader.next();
             switch (c) {
                 case '·':
                     Fragment f2 = stack.pop();
                     Fragment f1 = stack.pop();
-                    addTransition(f1.accept, 'ε', f2.start);
-                    stack.push(new Fragment(f1.start, f2.accept));
+                    addEpsilon(f1.accept, f2.start);
+                    stack.push(new Fragment(f1.start, f2.accept, f1.firstState, f1.firstEdge));
                     break;
                 case '|':
                     Fragment f2Or = stack.pop();
                     Fragment f1Or = stack.pop();
                     int s0 = createState();
                     int s3 = createState();
-                    addTransition(s0, 'ε', f1Or.start);
-                    addTransition(s0, 'ε', f2Or.start);
-                    addTransition(f1Or.accept, 'ε', s3);
-                    addTransition(f2Or.accept, 'ε', s3);
-                    stack.push(new Fragment(s0, s3));
+                    addEpsilon(s0, f1Or.start);
+                    addEpsilon(s0, f2Or.start);
+                    addEpsilon(f1Or.accept, s3);
+                    addEpsilon(f2Or.accept, s3);
+                    stack.push(new Fragment(s0, s3, f1Or.firstState, f1Or.firstEdge));
                     break;
                 case '*':
-                    Fragment fStar = stack.pop();
-                    int s0Star = createState();
-                    int s1Star = createState();
-                    addTransition(s0Star, 'ε', fStar.start);
-                    addTransition(s0Star, 'ε', s1Star);
-                    addTransition(fStar.accept, 'ε', fStar.start);
-                    addTransition(fStar.accept, 'ε', s1Star);
-                    stack.push(new Fragment(s0Star, s1Star));
+                case '+':
+                case '?':
+                    // One new start and accept around the operand; * and ? may skip it, * and + loop
+                    Fragment operand = stack.pop();
+                    int s0Rep = createState();
+                    int s1Rep = createState();
+                    addEpsilon(s0Rep, operand.start);
+                    addEpsilon(operand.accept, s1Rep);
+                    if (c != '+') {
+                        addEpsilon(s0Rep, s1Rep);
+                    }
+                    if (c != '?') {
+                        addEpsilon(operand.accept, operand.start);
+                    }
+                    stack.push(new Fragment(s0Rep, s1Rep, operand.firstState, operand.firstEdge));
+                    break;
+                case '{':
+                    int[] bounds = reader.repeat();
+                    stack.push(repeat(stack.pop(), bounds[0], bounds[1], regexStart));
+                    break;
+                case EPSILON:
+                    int s0Empty = createState();
+                    int s1Empty = createState();
+                    addEpsilon(s0Empty, s1Empty);
+                    stack.push(new Fragment(s0Empty, s1Empty, firstState, firstEdge));
                     break;
                 default:
-                    int s0Lit = createState();
-                    int s1Lit = createState();
-                    addTransition(s0Lit, c, s1Lit);
-                    stack.push(new Fragment(s0Lit, s1Lit));
+                    int[] ranges = c == '\\' ? reader.escape() : c == '[' ? reader.charClass() : new int[]{c, c};
+                    Fragment atom = buildRanges(ranges);
+                    stack.push(new Fragment(atom.start, atom.accept, firstState, firstEdge));
             }
         }
 
         Fragment nfaFragment = stack.pop();
         nfaStart = nfaFragment.start;
         nfaAccept = nfaFragment.accept;
+        CompilerMetrics.end(span, stateCounter - regexStart, edgeCount - edgeStart);
+    }
+
+    // Code points past the BMP take two chars, so their ranges become high-surrogate then
+    // low-surrogate steps: at most three per range, never one edge per character
+    private Fragment buildRanges(int[] ranges) {
+        int start = createState();
+        int accept = createState();
+        for (int i = 0; i < ranges.length; i += 2) {
+            int lo = ranges[i];
+            int hi = ranges[i + 1];
+            if (lo <= Character.MAX_VALUE) {
+                addRange(start, (char) lo, (char) Math.min(hi, Character.MAX_VALUE), accept);
+                lo = Character.MAX_VALUE + 1;
+            }
+            if (hi < lo) {
+                continue;
+            }
+            char loHigh = Character.highSurrogate(lo);
+            char hiHigh = Character.highSurrogate(hi);
+            if (loHigh == hiHigh) {
+                addSurrogatePair(start, loHigh, loHigh, Character.lowSurrogate(lo), Character.lowSurrogate(hi), accept);
+                continue;
+            }
+            addSurrogatePair(start, loHigh, loHigh, Character.lowSurrogate(lo), Character.MAX_LOW_SURROGATE, accept);
+            if (hiHigh - loHigh > 1) {
+                addSurrogatePair(start, (char) (loHigh + 1), (char) (hiHigh - 1),
+                        Character.MIN_LOW_SURROGATE, Character.MAX_LOW_SURROGATE, accept);
+            }
+            addSurrogatePair(start, hiHigh, hiHigh, Character.MIN_LOW_SURROGATE, Character.lowSurrogate(hi), accept);
+        }
+        return new Fragment(start, accept);
+    }
+
+    private void addSurrogatePair(int from, char highLo, char highHi, char lowLo, char lowHi, int to) {
+        int middle = createState();
+        addRange(from, highLo, highHi, middle);
+        addRange(middle, lowLo, lowHi, to);
+    }
+
+    // x{m,n} is m copies of x followed by n - m nested optional ones, and x{m,} ends in a loop
+    // instead. Copies are capped so that a pattern cannot ask for an automaton of any size.
+    private Fragment repeat(Fragment operand, int min, int max, int regexStart) {
+        int stateEnd = stateCounter;
+        int edgeEnd = edgeCount;
+        int copies = max < 0 ? Math.max(min, 1) : max;
+        long needed = (long) (stateEnd - operand.firstState) * (copies - 1) + 2;
+        if (stateEnd - regexStart + needed > MAX_REPEAT_STATES) {
+            throw new IllegalArgumentException("Repeat {" + min + "," + (max >= 0 ? max : "") + "} would need "
+                    + needed + " more NFA states, over the limit of " + MAX_REPEAT_STATES);
+        }
+
+        Fragment[] parts = new Fragment[copies];
+        for (int i = 0; i < copies; i++) {
+            parts[i] = i == 0 ? operand : copyFragment(operand, stateEnd, edgeEnd);
+        }
+        int start = createState();
+        int accept = createState();
+        int cursor = start;
+        for (int i = 0; i < copies; i++) {
+            if (i >= min && max >= 0) {
+                addEpsilon(cursor, accept);
+            }
+            addEpsilon(cursor, parts[i].start);
+            cursor = parts[i].accept;
+        }
+        addEpsilon(cursor, accept);
+        if (max < 0) {
+            Fragment last = parts[copies - 1];
+            addEpsilon(last.accept, last.start);
+            if (min == 0) {
+                addEpsilon(start, accept);
+            }
+        }
+        return new Fragment(start, accept, operand.firstState, operand.firstEdge);
+    }
+
+    // Copies the states and edges of a fragment that ended at stateEnd and edgeEnd
+    private Fragment copyFragment(Fragment fragment, int stateEnd, int edgeEnd) {
+        int offset = stateCounter - fragment.firstState;
+        for (int state = fragment.firstState; state < stateEnd; state++) {
+            createState();
+        }
+        for (int e = fragment.firstEdge; e < edgeEnd; e++) {
+            addRange(edgeFrom[e] + offset, edgeLo[e], edgeHi[e], edgeTo[e] + offset);
+        }
+        return new Fragment(fragment.start + offset, fragment.accept + offset);
+    }
+
+    private Fragment buildLiteral(String text) {
+        int start = createState();
+        int current = start;
+        for (char c : text.toCharArray()) {
+            int next = createState();
+            addTransition(current, c, next);
+            current = next;
+        }
+        return new Fragment(start, current);
     }
 
-    private static Set<Character> getAlphabet(String regex) {
-        Set<Character> alphabet = new HashSet<>();
-        for (char c : regex.toCharArray()) {
-            if (!isOperator(c) && c != '(' && c != ')') {
-                alphabet.add(c);
+    // Characters fall into equivalence classes: two share a class when every NFA edge accepts both
+    // or neither, so the DFA needs one column per class rather than one per character. Edge ranges
+    // cut the character space into intervals and intervals covered by the same edges are merged.
+    // Class 0 holds the top interval, which runs to Character.MAX_VALUE, and classMap stops where it starts:
+    // scanners send every character past the end of the map to class 0.
+    private int[] classMap = new int[0];
+    private int classCount;
+    // A member of each class
+    private int[] classRep = new int[0];
+
+    private void computeClasses() {
+        int edges = nfaEdgeTarget.length;
+        int[] bounds = new int[edges * 2 + 2];
+        int count = 0;
+        bounds[count++] = 0;
+        bounds[count++] = Character.MAX_VALUE + 1;
+        for (int e = 0; e < edges; e++) {
+            bounds[count++] = nfaEdgeLo[e];
+            bounds[count++] = nfaEdgeHi[e] + 1;
+        }
+        Arrays.sort(bounds, 0, count);
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || bounds[i] != bounds[unique - 1]) {
+                bounds[unique++] = bounds[i];
+            }
+        }
+        // Interval i is [bounds[i], bounds[i + 1]); the last one is the top interval
+        int intervals = unique - 1;
+        List<List<Integer>> covering = new ArrayList<>();
+        for (int i = 0; i < intervals; i++) {
+            covering.add(new ArrayList<>());
+        }
+        for (int e = 0; e < edges; e++) {
+            for (int i = Arrays.binarySearch(bounds, 0, unique, nfaEdgeLo[e]); bounds[i] <= nfaEdgeHi[e]; i++) {
+                covering.get(i).add(e);
+            }
+        }
+
+        Map<List<Integer>, Integer> classOf = new HashMap<>();
+        classOf.put(covering.get(intervals - 1), 0);
+        List<Integer> reps = new ArrayList<>();
+        reps.add(bounds[intervals - 1]);
+        classMap = new int[bounds[intervals - 1]];
+        for (int i = 0; i < intervals - 1; i++) {
+            Integer cls = classOf.get(covering.get(i));
+            if (cls == null) {
+                cls = reps.size();
+                classOf.put(covering.get(i), cls);
+                reps.add(bounds[i]);
             }
+            Arrays.fill(classMap, bounds[i], bounds[i + 1], cls);
+        }
+        classCount = reps.size();
+        classRep = new int[classCount];
+        for (int cls = 0; cls < classCount; cls++) {
+            classRep[cls] = reps.get(cls);
         }
-        return alphabet;
     }
 
-    private static Set<Integer> epsilonClosure(Set<Integer> states) {
-        Set<Integer> closure = new HashSet<>(states);
-        Queue<Integer> queue = new LinkedList<>(states);
-        while (!queue.isEmpty()) {
-            int s = queue.poll();
-            Map<Character, Set<Integer>> transitions = nfaTransitions.getOrDefault(s, new HashMap<>());
-            Set<Integer> epsilonTrans = transitions.getOrDefault('ε', new HashSet<>());
-            for (int next : epsilonTrans) {
-                if (!closure.contains(next)) {
-                    closure.add(next);
-                    queue.add(next);
+    // Classes whose columns are identical once the DFA is minimized are merged, most often
+    // characters that only ever appear as alternatives of each other. Class 0 keeps its id.
+    private void mergeClasses() {
+        int k = classCount;
+        int n = dfaStateCount;
+        int[] newClass = new int[k];
+        int[] firstOf = new int[k];
+        Map<Integer, List<Integer>> byHash = new HashMap<>();
+        int merged = 0;
+        for (int a = 0; a < k; a++) {
+            int hash = 1;
+            for (int state = 0; state < n; state++) {
+                hash = 31 * hash + dfaTransitions[state * k + a];
+            }
+            List<Integer> candidates = byHash.computeIfAbsent(hash, h -> new ArrayList<>());
+            newClass[a] = -1;
+            for (int b : candidates) {
+                if (sameColumn(a, firstOf[newClass[b]], k, n)) {
+                    newClass[a] = newClass[b];
+                    break;
                 }
             }
+            if (newClass[a] < 0) {
+                newClass[a] = merged;
+                firstOf[merged++] = a;
+                candidates.add(a);
+            }
+        }
+        if (merged == k) {
+            return;
+        }
+
+        int[] transitions = new int[n * merged];
+        int[] reps = new int[merged];
+        for (int cls = 0; cls < merged; cls++) {
+            int a = firstOf[cls];
+            reps[cls] = classRep[a];
+            for (int state = 0; state < n; state++) {
+                transitions[state * merged + cls] = dfaTransitions[state * k + a];
+            }
+        }
+        int length = classMap.length;
+        for (int c = 0; c < classMap.length; c++) {
+            classMap[c] = newClass[classMap[c]];
         }
-        return closure;
+        while (length > 0 && classMap[length - 1] == 0) {
+            length--;
+        }
+        classMap = Arrays.copyOf(classMap, length);
+        classRep = reps;
+        classCount = merged;
+        dfaTransitions = transitions;
     }
 
-    private static Set<Integer> move(Set<Integer> states, char symbol) {
-        Set<Integer> result = new HashSet<>();
-        for (int s : states) {
-            Map<Character, Set<Integer>> transitions = nfaTransitions.getOrDefault(s, new HashMap<>());
-            Set<Integer> symbolTrans = transitions.getOrDefault(symbol, new HashSet<>());
-            result.addAll(symbolTrans);
+    private boolean sameColumn(int a, int b, int k, int n) {
+        for (int state = 0; state < n; state++) {
+            if (dfaTransitions[state * k + a] != dfaTransitions[state * k + b]) {
+                return false;
+            }
         }
-        return result;
+        return true;
     }
 
-    private static Map<Integer, Set<Integer>> dfaStates = new HashMap<>();
-    private static Map<Integer, Map<Character, Integer>> dfaTransitions = new HashMap<>();
-    private static Set<Integer> dfaAccepts = new HashSet<>();
-    private static int dfaStart;
-    private static Set<Character> alphabet;
+    // Subset construction scratch space; seen[] is stamped instead of cleared between passes
+    private int[] seen = new int[0];
+    private int seenStamp = 0;
 
-    private static void buildDFA(Set<Character> alphabet) {
-        dfaStates.clear();
-        dfaTransitions.clear();
-        dfaAccepts.clear();
+    private void nextStamp() {
+        if (++seenStamp == Integer.MAX_VALUE) {
+            Arrays.fill(seen, 0);
+            seenStamp = 1;
+        }
+    }
 
-        Set<Integer> initialState = epsilonClosure(Collections.singleton(nfaStart));
-        dfaStart = 0;
-        dfaStates.put(dfaStart, initialState);
+    // Closes states[0..count) in place and sorts it; states must have room for every NFA state
+    private int epsilonClosure(int[] states, int count) {
+        nextStamp();
+        for (int i = 0; i < count; i++) {
+            seen[states[i]] = seenStamp;
+        }
+        for (int i = 0; i < count; i++) {
+            int s = states[i];
+            for (int e = nfaEpsilonStart[s]; e < nfaEpsilonStart[s + 1]; e++) {
+                int next = nfaEpsilonTarget[e];
+                if (seen[next] != seenStamp) {
+                    seen[next] = seenStamp;
+                    states[count++] = next;
+                }
+            }
+        }
+        Arrays.sort(states, 0, count);
+        return count;
+    }
+
+    private int move(int[] states, int from, int to, int symbol, int[] result) {
+        nextStamp();
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            int s = states[i];
+            for (int e = nfaEdgeStart[s]; e < nfaEdgeStart[s + 1]; e++) {
+                int next = nfaEdgeTarget[e];
+                if (nfaEdgeLo[e] <= symbol && symbol <= nfaEdgeHi[e] && seen[next] != seenStamp) {
+                    seen[next] = seenStamp;
+                    result[count++] = next;
+                }
+            }
+        }
+        return count;
+    }
+
+    // DFA state i owns the sorted NFA states dfaSetPool[dfaSetStart[i] .. dfaSetStart[i + 1]) and
+    // moves on class a to dfaTransitions[i * classCount + a], -1 being the dead state
+    private int dfaStateCount;
+    private int[] dfaTransitions = new int[0];
+    private int[] dfaSetStart = new int[1];
+    private int[] dfaSetPool = new int[0];
+    private int[] dfaSetHash = new int[0];
+    private int[] setTable = new int[0];
+    private BitSet dfaAccepts = new BitSet();
+    private int unminimizedStateCount;
+    private int dfaStart;
+    // Adds the NFA start state to every move, so a match can begin at any position. The closure of
+    // the start state is then part of every DFA state; it is kept once in unanchoredBase and left
+    // out of the state sets, which would otherwise all repeat it.
+    private boolean unanchored;
+    private int[] unanchoredBase = new int[0];
+
+    private int findOrAddState(int[] set, int size) {
+        int hash = 1;
+        for (int i = 0; i < size; i++) {
+            hash = 31 * hash + set[i];
+        }
+        hash ^= hash >>> 16;
+
+        int mask = setTable.length - 1;
+        for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+            int id = setTable[slot];
+            if (id < 0) {
+                id = addDFAState(set, size, hash);
+                setTable[slot] = id;
+                if (dfaStateCount * 2 > setTable.length) {
+                    rehashStates();
+                }
+                return id;
+            }
+            if (dfaSetHash[id] == hash && sameSet(id, set, size)) {
+                return id;
+            }
+        }
+    }
+
+    private boolean sameSet(int id, int[] set, int size) {
+        int from = dfaSetStart[id];
+        if (dfaSetStart[id + 1] - from != size) {
+            return false;
+        }
+        for (int i = 0; i < size; i++) {
+            if (dfaSetPool[from + i] != set[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int addDFAState(int[] set, int size, int hash) {
+        int id = dfaStateCount++;
+        int k = classCount;
+        if (id + 1 == dfaSetStart.length) {
+            dfaSetStart = Arrays.copyOf(dfaSetStart, dfaSetStart.length * 2);
+            dfaSetHash = Arrays.copyOf(dfaSetHash, dfaSetStart.length);
+        }
+        if ((id + 1) * k > dfaTransitions.length) {
+            int oldLength = dfaTransitions.length;
+            dfaTransitions = Arrays.copyOf(dfaTransitions, Math.max(oldLength * 2, (id + 1) * k));
+            Arrays.fill(dfaTransitions, oldLength, dfaTransitions.length, -1);
+        }
+        int from = dfaSetStart[id];
+        if (from + size > dfaSetPool.length) {
+            dfaSetPool = Arrays.copyOf(dfaSetPool, Math.max(dfaSetPool.length * 2, from + size));
+        }
+        System.arraycopy(set, 0, dfaSetPool, from, size);
+        dfaSetStart[id + 1] = from + size;
+        dfaSetHash[id] = hash;
+        return id;
+    }
 
-        Queue<Integer> queue = new LinkedList<>();
-        queue.add(dfaStart);
+    private void rehashStates() {
+        setTable = new int[setTable.length * 2];
+        Arrays.fill(setTable, -1);
+        int mask = setTable.length - 1;
+        for (int id = 0; id < dfaStateCount; id++) {
+            int slot = dfaSetHash[id] & mask;
+            while (setTable[slot] >= 0) {
+                slot = (slot + 1) & mask;
+            }
+            setTable[slot] = id;
+        }
+    }
 
-        Map<Set<Integer>, Integer> stateMap = new HashMap<>();
-        stateMap.put(initialState, dfaStart);
+    void buildDFA() {
+        CompilerMetrics.Span span = CompilerMetrics.begin(CompilerMetrics.Phase.DFA);
+        freezeNFA();
+        computeClasses();
+        int k = classCount;
 
-        while (!queue.isEmpty()) {
-            int currentStateId = queue.poll();
-            Set<Integer> currentNfaStates = dfaStates.get(currentStateId);
+        int n = stateCounter;
+        seen = new int[n];
+        seenStamp = 0;
+        dfaStateCount = 0;
+        dfaSetStart = new int[16];
+        dfaSetHash = new int[16];
+        dfaSetPool = new int[64];
+        dfaTransitions = new int[0];
+        setTable = new int[32];
+        Arrays.fill(setTable, -1);
 
-            for (char symbol : alphabet) {
-                Set<Integer> moved = move(currentNfaStates, symbol);
-                Set<Integer> closure = epsilonClosure(moved);
+        int[] current = new int[n];
+        current[0] = nfaStart;
+        int[][] baseMoves = new int[k][];
+        // Target of a state with no move of its own on the symbol, the same for every state
+        int[] baseTarget = new int[k];
+        Arrays.fill(baseTarget, -1);
+        boolean[] inBase = new boolean[n];
+        if (unanchored) {
+            unanchoredBase = Arrays.copyOf(current, epsilonClosure(current, 1));
+            for (int state : unanchoredBase) {
+                inBase[state] = true;
+            }
+            for (int a = 0; a < k; a++) {
+                baseMoves[a] = Arrays.copyOf(current, move(unanchoredBase, 0, unanchoredBase.length, classRep[a], current));
+            }
+            dfaStart = findOrAddState(current, 0);
+        } else {
+            unanchoredBase = new int[0];
+            dfaStart = findOrAddState(current, epsilonClosure(current, 1));
+        }
 
-                if (closure.isEmpty()) {
+        // States are numbered in discovery order, so walking ids in order is the BFS queue
+        int maxQueue = 0;
+        for (int id = 0; id < dfaStateCount; id++) {
+            maxQueue = Math.max(maxQueue, dfaStateCount - id);
+            for (int a = 0; a < k; a++) {
+                int moved = move(dfaSetPool, dfaSetStart[id], dfaSetStart[id + 1], classRep[a], current);
+                if (!unanchored) {
+                    if (moved == 0) {
+                        continue;
+                    }
+                    int target = findOrAddState(current, epsilonClosure(current, moved));
+                    dfaTransitions[id * k + a] = target;
+                    continue;
+                }
+                if (moved == 0 && baseTarget[a] >= 0) {
+                    dfaTransitions[id * k + a] = baseTarget[a];
                     continue;
                 }
+                boolean fromBase = moved == 0;
+                for (int state : baseMoves[a]) {
+                    if (seen[state] != seenStamp) {
+                        seen[state] = seenStamp;
+                        current[moved++] = state;
+                    }
+                }
+                int closed = epsilonClosure(current, moved);
+                int size = 0;
+                for (int i = 0; i < closed; i++) {
+                    if (!inBase[current[i]]) {
+                        current[size++] = current[i];
+                    }
+                }
+                // Not folded into the store: adding a state may reallocate dfaTransitions
+                int target = findOrAddState(current, size);
+                dfaTransitions[id * k + a] = target;
+                if (fromBase) {
+                    baseTarget[a] = target;
+                }
+            }
+        }
+
+        dfaAccepts = new BitSet(dfaStateCount);
+        for (int id = 0; id < dfaStateCount; id++) {
+            if (Arrays.binarySearch(dfaSetPool, dfaSetStart[id], dfaSetStart[id + 1], nfaAccept) >= 0) {
+                dfaAccepts.set(id);
+            }
+        }
+        unminimizedStateCount = dfaStateCount;
+        if (span != null) {
+            CompilerMetrics.end(span, dfaStateCount, countTransitions(), maxQueue);
+        }
+    }
+
+    // Transitions to a live state; the dead state is implicit
+    private long countTransitions() {
+        long count = 0;
+        for (int i = 0; i < dfaStateCount * classCount; i++) {
+            count += dfaTransitions[i] >= 0 ? 1 : 0;
+        }
+        return count;
+    }
+
+    void minimizeDFA() {
+        int[] labels = new int[dfaStateCount];
+        for (int state = 0; state < labels.length; state++) {
+            labels[state] = dfaAccepts.get(state) ? 0 : -1;
+        }
+        minimizeDFA(labels);
+    }
+
+    // Hopcroft partition refinement. States start out split by label (-1 for non-accepting,
+    // otherwise the accept tag) and a dead state stands in for missing transitions.
+    // Equivalent classes are merged afterwards. Returns the label of each minimized state.
+    private int[] minimizeDFA(int[] labels) {
+        CompilerMetrics.Span span = CompilerMetrics.begin(CompilerMetrics.Phase.MINIMIZE);
+        int n = dfaStateCount + 1;
+        int dead = n - 1;
+        int k = classCount;
+
+        int[] delta = new int[n * k];
+        Arrays.fill(delta, dead);
+        for (int i = 0; i < dfaStateCount * k; i++) {
+            if (dfaTransitions[i] >= 0) {
+                delta[i] = dfaTransitions[i];
+            }
+        }
+
+        // Reverse edges in CSR form, grouped by (symbol, target)
+        int[] predStart = new int[k * n + 1];
+        for (int s = 0; s < n; s++) {
+            for (int a = 0; a < k; a++) {
+                predStart[a * n + delta[s * k + a] + 1]++;
+            }
+        }
+        for (int i = 0; i < k * n; i++) {
+            predStart[i + 1] += predStart[i];
+        }
+        int[] preds = new int[n * k];
+        int[] fill = Arrays.copyOf(predStart, k * n);
+        for (int s = 0; s < n; s++) {
+            for (int a = 0; a < k; a++) {
+                preds[fill[a * n + delta[s * k + a]]++] = s;
+            }
+        }
+
+        // Initial partition: one block per distinct label, the dead state joins the non-accepting block
+        int[] elems = new int[n];
+        int[] loc = new int[n];
+        int[] blockOf = new int[n];
+        int[] blockStart = new int[n + 1];
+        int[] blockEnd = new int[n + 1];
+        int[] marked = new int[n + 1];
+        Map<Integer, Integer> blockByLabel = new LinkedHashMap<>();
+        int[] sizes = new int[n + 1];
+        for (int s = 0; s < n; s++) {
+            int label = s == dead ? -1 : labels[s];
+            int b = blockByLabel.computeIfAbsent(label, l -> blockByLabel.size());
+            blockOf[s] = b;
+            sizes[b]++;
+        }
+        int numBlocks = blockByLabel.size();
+        for (int b = 0, pos = 0; b < numBlocks; b++) {
+            blockStart[b] = pos;
+            blockEnd[b] = pos;
+            pos += sizes[b];
+        }
+        for (int s = 0; s < n; s++) {
+            int b = blockOf[s];
+            elems[blockEnd[b]] = s;
+            loc[s] = blockEnd[b]++;
+        }
+
+        Deque<Integer> work = new ArrayDeque<>();
+        boolean[] inWork = new boolean[n + 1];
+        for (int b = 0; b < numBlocks; b++) {
+            work.add(b);
+            inWork[b] = true;
+        }
+
+        int[] touched = new int[n];
+        while (!work.isEmpty()) {
+            int splitter = work.poll();
+            inWork[splitter] = false;
+            int[] splitterStates = Arrays.copyOfRange(elems, blockStart[splitter], blockEnd[splitter]);
+
+            for (int a = 0; a < k; a++) {
+                int touchedCount = 0;
+                for (int target : splitterStates) {
+                    for (int i = predStart[a * n + target]; i < predStart[a * n + target + 1]; i++) {
+                        int s = preds[i];
+                        int b = blockOf[s];
+                        int markPos = blockStart[b] + marked[b];
+                        if (loc[s] < markPos) {
+                            continue;
+                        }
+                        if (marked[b] == 0) {
+                            touched[touchedCount++] = b;
+                        }
+                        int other = elems[markPos];
+                        elems[loc[s]] = other;
+                        loc[other] = loc[s];
+                        elems[markPos] = s;
+                        loc[s] = markPos;
+                        marked[b]++;
+                    }
+                }
+
+                for (int t = 0; t < touchedCount; t++) {
+                    int b = touched[t];
+                    int split = blockStart[b] + marked[b];
+                    marked[b] = 0;
+                    if (split == blockEnd[b]) {
+                        continue;
+                    }
+                    int nb = numBlocks++;
+                    blockStart[nb] = blockStart[b];
+                    blockEnd[nb] = split;
+                    blockStart[b] = split;
+                    for (int i = blockStart[nb]; i < blockEnd[nb]; i++) {
+                        blockOf[elems[i]] = nb;
+                    }
+                    if (inWork[b]) {
+                        work.add(nb);
+                        inWork[nb] = true;
+                    } else {
+                        int smaller = blockEnd[nb] - blockStart[nb] <= blockEnd[b] - blockStart[b] ? nb : b;
+                        work.add(smaller);
+                        inWork[smaller] = true;
+                    }
+                }
+            }
+        }
+
+        // Renumber blocks breadth-first from the start state so S0 stays the start; drop the dead block
+        int[] newId = new int[numBlocks];
+        Arrays.fill(newId, -1);
+        int[] order = new int[numBlocks];
+        int count = 0;
+        newId[blockOf[dfaStart]] = count;
+        order[count++] = dfaStart;
+        for (int head = 0; head < count; head++) {
+            int rep = order[head];
+            for (int a = 0; a < k; a++) {
+                int b = blockOf[delta[rep * k + a]];
+                if (b != blockOf[dead] && newId[b] < 0) {
+                    newId[b] = count;
+                    order[count++] = elems[blockStart[b]];
+                }
+            }
+        }
+
+        List<Set<Integer>> members = new ArrayList<>();
+        for (int id = 0; id < count; id++) {
+            members.add(new TreeSet<>());
+        }
+        for (int state = 0; state < dfaStateCount; state++) {
+            int id = newId[blockOf[state]];
+            if (id >= 0) {
+                for (int i = dfaSetStart[state]; i < dfaSetStart[state + 1]; i++) {
+                    members.get(id).add(dfaSetPool[i]);
+                }
+            }
+        }
+
+        int[] minLabels = new int[count];
+        int[] minTransitions = new int[count * k];
+        int[] minSetStart = new int[count + 1];
+        int poolSize = 0;
+        for (Set<Integer> set : members) {
+            poolSize += set.size();
+        }
+        int[] minSetPool = new int[poolSize];
+        dfaAccepts = new BitSet(count);
+        for (int id = 0, pos = 0; id < count; id++) {
+            int rep = order[id];
+            minLabels[id] = labels[rep];
+            if (minLabels[id] >= 0) {
+                dfaAccepts.set(id);
+            }
+            for (int a = 0; a < k; a++) {
+                minTransitions[id * k + a] = newId[blockOf[delta[rep * k + a]]];
+            }
+            for (int nfaState : members.get(id)) {
+                minSetPool[pos++] = nfaState;
+            }
+            minSetStart[id + 1] = pos;
+        }
+
+        dfaStateCount = count;
+        dfaTransitions = minTransitions;
+        dfaSetStart = minSetStart;
+        dfaSetPool = minSetPool;
+        dfaStart = 0;
+        mergeClasses();
+        if (span != null) {
+            CompilerMetrics.end(span, dfaStateCount, countTransitions());
+        }
+        return minLabels;
+    }
+
+    static LexerTable buildLexer(List<LexerRule> rules) {
+        return new RegexToDFA().lexerTable(rules);
+    }
+
+    public static CompiledPattern compile(String regex) {
+        return new RegexToDFA().compiledPattern(regex, true);
+    }
+
+    // The raw subset construction accepts the same language; kept to check the minimizer against
+    static CompiledPattern compileUnminimized(String regex) {
+        return new RegexToDFA().compiledPattern(regex, false);
+    }
+
+    public static PatternSet compileSet(List<String> regexes, boolean anywhere) {
+        return new RegexToDFA().patternSet(regexes, anywhere);
+    }
+
+    static LazyDFA compileLazy(String regex, long memoryLimit) {
+        RegexToDFA builder = new RegexToDFA();
+        builder.buildNFA(regexToPostfix(regex));
+        return new LazyDFA(builder, memoryLimit);
+    }
 
-                if (!stateMap.containsKey(closure)) {
-                    int newStateId = dfaStates.size();
-                    stateMap.put(closure, newStateId);
-                    dfaStates.put(newStateId, closure);
-                    queue.add(newStateId);
+    private LexerTable lexerTable(List<LexerRule> rules) {
+
+        int lexerStart = createState();
+        List<int[]> acceptTags = new ArrayList<>();
+
+        for (int i = 0; i < rules.size(); i++) {
+            LexerRule rule = rules.get(i);
+            Fragment fragment;
+            if (rule.literal) {
+                fragment = buildLiteral(rule.pattern);
+            } else {
+                buildNFA(regexToPostfix(rule.pattern));
+                fragment = new Fragment(nfaStart, nfaAccept);
+            }
+            addEpsilon(lexerStart, fragment.start);
+            acceptTags.add(new int[]{fragment.accept, i});
+        }
+
+        nfaStart = lexerStart;
+        nfaAccept = -1;
+        buildDFA();
+
+        int[] nfaTag = new int[stateCounter];
+        Arrays.fill(nfaTag, -1);
+        for (int[] tag : acceptTags) {
+            nfaTag[tag[0]] = tag[1];
+        }
+
+        // Longest match is resolved by the scanner; among rules accepting the same lexeme the lowest priority wins
+        int[] acceptRule = new int[dfaStateCount];
+        for (int state = 0; state < dfaStateCount; state++) {
+            int best = -1;
+            for (int i = dfaSetStart[state]; i < dfaSetStart[state + 1]; i++) {
+                int rule = nfaTag[dfaSetPool[i]];
+                if (rule >= 0 && (best < 0 || rules.get(rule).priority < rules.get(best).priority
+                        || (rules.get(rule).priority == rules.get(best).priority && rule < best))) {
+                    best = rule;
                 }
+            }
+            acceptRule[state] = best;
+        }
+
+        acceptRule = minimizeDFA(acceptRule);
+
+        return new LexerTable(buildClassMap(), classCount, buildDenseTransitions(), acceptRule, dfaStart);
+    }
+
+    // Same union under a new start state as lexerTable, but a state keeps every pattern it accepts
+    // instead of the one with the best priority. Minimization labels states by that set.
+    private PatternSet patternSet(List<String> regexes, boolean anywhere) {
+        int setStart = createState();
+        int[] patternOf = new int[0];
+        for (int i = 0; i < regexes.size(); i++) {
+            buildNFA(regexToPostfix(regexes.get(i)));
+            addEpsilon(setStart, nfaStart);
+            if (nfaAccept >= patternOf.length) {
+                int oldLength = patternOf.length;
+                patternOf = Arrays.copyOf(patternOf, Math.max(oldLength * 2, nfaAccept + 1));
+                Arrays.fill(patternOf, oldLength, patternOf.length, -1);
+            }
+            patternOf[nfaAccept] = i;
+        }
+
+        nfaStart = setStart;
+        nfaAccept = -1;
+        unanchored = anywhere;
+        buildDFA();
 
-                int targetStateId = stateMap.get(closure);
-                dfaTransitions.putIfAbsent(currentStateId, new HashMap<>());
-                dfaTransitions.get(currentStateId).put(symbol, targetStateId);
+        // Patterns that match the empty string are accepted everywhere when searching
+        List<Integer> always = new ArrayList<>();
+        for (int nfaState : unanchoredBase) {
+            if (nfaState < patternOf.length && patternOf[nfaState] >= 0) {
+                always.add(patternOf[nfaState]);
+            }
+        }
+        Map<List<Integer>, Integer> labelOf = new HashMap<>();
+        List<List<Integer>> accepted = new ArrayList<>();
+        int[] labels = new int[dfaStateCount];
+        for (int state = 0; state < dfaStateCount; state++) {
+            List<Integer> ids = new ArrayList<>(always);
+            for (int i = dfaSetStart[state]; i < dfaSetStart[state + 1]; i++) {
+                int nfaState = dfaSetPool[i];
+                if (nfaState < patternOf.length && patternOf[nfaState] >= 0) {
+                    ids.add(patternOf[nfaState]);
+                }
+            }
+            Collections.sort(ids);
+            if (ids.isEmpty()) {
+                labels[state] = -1;
+                continue;
             }
+            Integer label = labelOf.get(ids);
+            if (label == null) {
+                label = accepted.size();
+                labelOf.put(ids, label);
+                accepted.add(ids);
+            }
+            labels[state] = label;
         }
 
-        for (Map.Entry<Integer, Set<Integer>> entry : dfaStates.entrySet()) {
-            if (entry.getValue().contains(nfaAccept)) {
-                dfaAccepts.add(entry.getKey());
+        labels = minimizeDFA(labels);
+
+        int[] acceptStart = new int[dfaStateCount + 1];
+        int[] acceptPool = new int[0];
+        for (int state = 0; state < dfaStateCount; state++) {
+            List<Integer> ids = labels[state] >= 0 ? accepted.get(labels[state]) : Collections.emptyList();
+            int from = acceptStart[state];
+            if (from + ids.size() > acceptPool.length) {
+                acceptPool = Arrays.copyOf(acceptPool, Math.max(acceptPool.length * 2, from + ids.size()));
             }
+            for (int i = 0; i < ids.size(); i++) {
+                acceptPool[from + i] = ids.get(i);
+            }
+            acceptStart[state + 1] = from + ids.size();
+        }
+
+        // Searching, every move restarts the patterns, so the dead state is never reached
+        return new PatternSet(regexes.toArray(new String[0]), buildClassMap(), classCount, buildDenseTransitions(),
+                acceptStart, Arrays.copyOf(acceptPool, acceptStart[dfaStateCount]), dfaStart, anywhere);
+    }
+
+    // Characters past the end of the map are in class 0
+    private int[] buildClassMap() {
+        return classMap.clone();
+    }
+
+    // transitions[state * classCount + class], -1 for the dead state
+    private int[] buildDenseTransitions() {
+        return Arrays.copyOf(dfaTransitions, dfaStateCount * classCount);
+    }
+
+    private CompiledPattern compiledPattern(String regex, boolean minimize) {
+        buildNFA(regexToPostfix(regex));
+        buildDFA();
+        if (minimize) {
+            minimizeDFA();
+        }
+
+        boolean[] accepting = new boolean[dfaStateCount];
+        for (int state = dfaAccepts.nextSetBit(0); state >= 0; state = dfaAccepts.nextSetBit(state + 1)) {
+            accepting[state] = true;
         }
+        return new CompiledPattern(regex, buildClassMap(), classCount, buildDenseTransitions(),
+                accepting, dfaStart);
     }
 
-    private static void displayNFA() {
+    private void displayNFA() {
+        freezeNFA();
         System.out.println("NFA Transition Table:");
         System.out.println("Start State: " + nfaStart);
         System.out.println("Accept State: " + nfaAccept);
         System.out.println("State\tSymbol\tNext States");
-        List<Integer> states = new ArrayList<>(nfaTransitions.keySet());
-        Collections.sort(states);
-        for (int state : states) {
-            Map<Character, Set<Integer>> transitions = nfaTransitions.get(state);
-            List<Character> symbols = new ArrayList<>(transitions.keySet());
-            Collections.sort(symbols);
-            for (char symbol : symbols) {
-                Set<Integer> nextStates = transitions.get(symbol);
-                System.out.printf("%d\t%c\t%s\n", state, symbol, nextStates);
+        for (int state = 0; state < stateCounter; state++) {
+            Map<String, Set<Integer>> transitions = new TreeMap<>();
+            for (int e = nfaEdgeStart[state]; e < nfaEdgeStart[state + 1]; e++) {
+                String label = nfaEdgeLo[e] == nfaEdgeHi[e] ? String.valueOf(nfaEdgeLo[e])
+                        : nfaEdgeLo[e] + "-" + nfaEdgeHi[e];
+                transitions.computeIfAbsent(label, c -> new TreeSet<>()).add(nfaEdgeTarget[e]);
+            }
+            for (int e = nfaEpsilonStart[state]; e < nfaEpsilonStart[state + 1]; e++) {
+                transitions.computeIfAbsent(String.valueOf(EPSILON), c -> new TreeSet<>()).add(nfaEpsilonTarget[e]);
+            }
+            for (Map.Entry<String, Set<Integer>> entry : transitions.entrySet()) {
+                System.out.printf("%d\t%s\t%s\n", state, entry.getKey(), entry.getValue());
             }
         }
     }
 
-    private static void displayDFA() {
+    private void displayDFA() {
         System.out.println("\nDFA Transition Table:");
         System.out.println("Start State: S" + dfaStart);
-        System.out.println("Accept States: " + dfaAccepts.stream().map(s -> "S" + s).collect(Collectors.toList()));
-        System.out.println("State\tNFA States\tSymbol\tNext State");
-        List<Integer> dfaStateIds = new ArrayList<>(dfaStates.keySet());
-        Collections.sort(dfaStateIds);
-        for (int stateId : dfaStateIds) {
+        System.out.println("States: " + dfaStateCount + " (" + unminimizedStateCount + " before minimization)");
+        System.out.println("Accept States: " + dfaAccepts.stream().mapToObj(s -> "S" + s).collect(Collectors.toList()));
+        System.out.println("State\tNFA States\tClass\tNext State");
+        int k = classCount;
+        for (int stateId = 0; stateId < dfaStateCount; stateId++) {
             String stateLabel = "S" + stateId;
-            String nfaStates = dfaStates.get(stateId).toString();
-            Map<Character, Integer> transitions = dfaTransitions.getOrDefault(stateId, new HashMap<>());
-            List<Character> symbols = new ArrayList<>(alphabet);
-            Collections.sort(symbols);
-            for (char symbol : symbols) {
-                if (transitions.containsKey(symbol)) {
-                    int nextState = transitions.get(symbol);
-                    System.out.printf("%s\t%s\t%c\tS%d\n", stateLabel, nfaStates, symbol, nextState);
+            String nfaStates = Arrays.toString(Arrays.copyOfRange(dfaSetPool, dfaSetStart[stateId], dfaSetStart[stateId + 1]));
+            for (int a = 0; a < k; a++) {
+                int nextState = dfaTransitions[stateId * k + a];
+                if (nextState >= 0) {
+                    System.out.printf("%s\t%s\t%s\tS%d\n", stateLabel, nfaStates, describeClass(a), nextState);
+                }
+            }
+        }
+    }
+
+    // Characters of the class as ranges, e.g. "0-9", with "other" for everything past the map
+    private String describeClass(int cls) {
+        StringBuilder text = new StringBuilder();
+        for (int c = 0; c < classMap.length; c++) {
+            if (classMap[c] != cls) {
+                continue;
+            }
+            int end = c;
+            while (end + 1 < classMap.length && classMap[end + 1] == cls) {
+                end++;
+            }
+            text.append(text.length() > 0 ? "," : "").append((char) c);
+            if (end > c) {
+                text.append('-').append((char) end);
+            }
+            c = end;
+        }
+        if (cls == 0) {
+            text.append(text.length() > 0 ? "," : "").append("other");
+        }
+        return text.toString();
+    }
+
+    private void displayMemoryFootprint() {
+        long nfaBytes = arrayBytes(nfaEdgeStart.length, 4) + arrayBytes(nfaEdgeLo.length, 2) * 2
+                + arrayBytes(nfaEdgeTarget.length, 4) + arrayBytes(nfaEpsilonStart.length, 4)
+                + arrayBytes(nfaEpsilonTarget.length, 4);
+        long transitionBytes = arrayBytes(dfaStateCount * classCount, 4) + arrayBytes(classMap.length, 4);
+        long setBytes = arrayBytes(dfaSetStart.length, 4) + arrayBytes(dfaSetPool.length, 4);
+        System.out.println("\nMemory Footprint:");
+        System.out.printf("NFA: %d states, %d symbol edges, %d epsilon edges, %d bytes\n",
+                stateCounter, nfaEdgeTarget.length, nfaEpsilonTarget.length, nfaBytes);
+        System.out.printf("DFA: %d states x %d classes, %d bytes transitions and class map, %d bytes state sets\n",
+                dfaStateCount, classCount, transitionBytes, setBytes);
+    }
+
+    private static long arrayBytes(int length, int elementSize) {
+        // 16-byte array header, padded to 8 bytes as on a typical 64-bit JVM
+        return (16 + (long) length * elementSize + 7) & ~7L;
+    }
+
+    public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--bench-set")) {
+            benchmarkSets(args.length > 1 ? Integer.parseInt(args[1]) : 20_000);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--bench-classes")) {
+            benchmarkClasses(args.length > 1 ? Integer.parseInt(args[1]) : 100_000);
+            return;
+        }
+        Scanner scanner = new Scanner(System.in);
+        System.out.print("Enter regular expression: ");
+        String regex = scanner.nextLine().trim();
+
+        String postfix;
+        try {
+            postfix = regexToPostfix(regex);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Error: " + e.getMessage());
+            scanner.close();
+            return;
+        }
+        System.out.println("Postfix expression: " + postfix);
+
+        RegexToDFA builder = new RegexToDFA();
+        builder.buildNFA(postfix);
+        builder.buildDFA();
+        builder.minimizeDFA();
+
+        builder.displayNFA();
+        builder.displayDFA();
+        builder.displayMemoryFootprint();
+
+        CompiledPattern pattern = compile(regex);
+        System.out.print("\nEnter text to match (empty line to quit): ");
+        while (scanner.hasNextLine()) {
+            String text = scanner.nextLine();
+            if (text.isEmpty()) {
+                break;
+            }
+            System.out.println("Whole input matches: " + pattern.matches(text));
+            for (Match match : pattern.findAll(text)) {
+                System.out.println("Match " + match);
+            }
+            System.out.print("\nEnter text to match (empty line to quit): ");
+        }
+
+        scanner.close();
+    }
+
+    // Searches log-like lines for 1, 100 and 1000 patterns of the form word(word|word)(digit)*, once
+    // with a loop over single CompiledPatterns and once with one PatternSet
+    private static void benchmarkSets(int lineCount) {
+        Random random = new Random(42);
+        String[] words = new String[200];
+        for (int i = 0; i < words.length; i++) {
+            StringBuilder word = new StringBuilder();
+            int length = 4 + random.nextInt(5);
+            for (int j = 0; j < length; j++) {
+                word.append((char) ('a' + random.nextInt(26)));
+            }
+            words[i] = word.toString();
+        }
+        // Words are run together in pairs now and then, which is what the patterns look for
+        String[] lines = new String[lineCount];
+        for (int i = 0; i < lineCount; i++) {
+            StringBuilder line = new StringBuilder();
+            while (line.length() < 80) {
+                line.append(words[random.nextInt(words.length)]);
+                if (random.nextInt(4) == 0) {
+                    line.append(words[random.nextInt(words.length)]);
+                }
+                line.append(random.nextInt(100)).append(' ');
+            }
+            lines[i] = line.toString();
+        }
+
+        System.out.printf("\nPattern Set Benchmark (%d lines of 80+ chars, search anywhere in the line):\n", lineCount);
+        System.out.println("+----------+------------+------------+----------------+----------------+---------+");
+        System.out.println("| Patterns | Build (ms) | DFA states | Loop (ns/line) | Set (ns/line)  | Matches |");
+        System.out.println("+----------+------------+------------+----------------+----------------+---------+");
+        for (int count : new int[]{1, 100, 1000}) {
+            List<String> regexes = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                regexes.add(words[random.nextInt(words.length)] + "(" + words[random.nextInt(words.length)] + "|"
+                        + words[random.nextInt(words.length)] + ")(0|1|2|3|4|5|6|7|8|9)*");
+            }
+            long start = System.nanoTime();
+            PatternSet set = compileSet(regexes, true);
+            long build = System.nanoTime() - start;
+            List<CompiledPattern> singles = new ArrayList<>();
+            for (String regex : regexes) {
+                singles.add(compile(regex));
+            }
+
+            long loop = Long.MAX_VALUE;
+            long combined = Long.MAX_VALUE;
+            long matches = 0;
+            // Early rounds warm up the JIT; the loop gets a slice of the lines so 1000 patterns stay quick
+            int loopLines = Math.max(1, lineCount / count);
+            for (int round = 0; round < 5; round++) {
+                start = System.nanoTime();
+                long found = 0;
+                for (int i = 0; i < loopLines; i++) {
+                    for (CompiledPattern pattern : singles) {
+                        found += pattern.find(lines[i]) != null ? 1 : 0;
+                    }
+                }
+                loop = Math.min(loop, (System.nanoTime() - start) / loopLines);
+
+                start = System.nanoTime();
+                matches = 0;
+                for (String line : lines) {
+                    matches += set.match(line).cardinality();
                 }
+                combined = Math.min(combined, (System.nanoTime() - start) / lineCount);
             }
+            System.out.printf("| %-8d | %-10.1f | %-10d | %-14d | %-14d | %-7d |\n", count, build / 1e6,
+                    set.stateCount(), loop, combined, matches);
         }
+        System.out.println("+----------+------------+------------+----------------+----------------+---------+");
     }
 
-    // public static void main(String[] args) {
-    //     Scanner scanner = new Scanner(System.in);
-    //     System.out.print("Enter regular expression: ");
-    //     String regex = scanner.nextLine().trim();
+    // Counts leftmost-longest matches in log-like lines with each pattern, once on the dense tables
+    // and once on the same DFA stored as one HashMap<Character, Integer> of transitions per state
+    private static void benchmarkClasses(int lineCount) {
+        String[][] patterns = {
+                {"number", "\\d+"},
+                {"identifier", "[a-z]\\w*"},
+                {"date", "\\d{4}-\\d\\d-\\d\\d"},
+                {"ipv4", "\\d{1,3}(\\.\\d{1,3}){3}"},
+                {"email", "\\w+@[a-z]+\\.(com|org|net)"},
+                {"level", "ERROR|WARN|INFO|DEBUG"},
+        };
+
+        Random random = new Random(42);
+        String[] levels = {"ERROR", "WARN", "INFO", "DEBUG"};
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lineCount; i++) {
+            text.append("2024-0").append(1 + random.nextInt(9)).append('-').append(10 + random.nextInt(18)).append(' ')
+                    .append(levels[random.nextInt(levels.length)]).append(" user_").append(random.nextInt(1000))
+                    .append("@host").append(random.nextInt(50)).append(".com from 10.0.").append(random.nextInt(256))
+                    .append('.').append(random.nextInt(256)).append(" took ").append(random.nextInt(5000)).append("ms\n");
+        }
+        String input = text.toString();
+
+        System.out.printf("\nClass Compression Benchmark (%d lines, %.1f MB, counting matches):\n", lineCount, input.length() / 1e6);
+        System.out.println("+------------+-------+-------+---------+-------------+-------------+-------------+---------+---------+");
+        System.out.println("| Pattern    | Chars | Class | States  | Per char(B) | Classes(B)  | Map est.(B) | Map MB/s| Dense   |");
+        System.out.println("+------------+-------+-------+---------+-------------+-------------+-------------+---------+---------+");
+        for (String[] pattern : patterns) {
+            CompiledPattern compiled = compile(pattern[1]);
+            int states = compiled.accepting.length;
+            // Characters outside every class lead nowhere and need no map entry
+            Set<Character> chars = new HashSet<>();
+            for (char c = 0; c < compiled.classMap.length; c++) {
+                if (compiled.classMap[c] != 0) {
+                    chars.add(c);
+                }
+            }
 
-    //     String postfix = regexToPostfix(regex);
-    //     System.out.println("Postfix expression: " + postfix);
+            // The same DFA with one map per state; missing keys lead to the dead state
+            List<Map<Character, Integer>> maps = new ArrayList<>();
+            long mapBytes = 0;
+            for (int state = 0; state < states; state++) {
+                Map<Character, Integer> row = new HashMap<>();
+                for (char c : chars) {
+                    int target = compiled.step(state, c);
+                    if (target >= 0) {
+                        row.put(c, target);
+                    }
+                }
+                maps.add(row);
+                // HashMap plus table, 32 bytes per node; small keys and values come from the box caches
+                mapBytes += 48 + arrayBytes(Math.max(16, Integer.highestOneBit(Math.max(1, row.size() * 4 / 3)) * 2), 4)
+                        + 32L * row.size();
+            }
+            long perCharBytes = arrayBytes(states * (chars.size() + 1), 4) + arrayBytes(compiled.classMap.length, 4);
+            long classBytes = arrayBytes(compiled.transitions.length, 4) + arrayBytes(compiled.classMap.length, 4);
 
-    //     buildNFA(postfix);
-    //     alphabet = getAlphabet(regex);
-    //     buildDFA(alphabet);
+            double mapRate = 0;
+            double denseRate = 0;
+            for (int round = 0; round < 5; round++) {
+                long start = System.nanoTime();
+                int mapMatches = countMatches(compiled, input, (state, c) -> {
+                    Integer next = maps.get(state).get(c);
+                    return next != null ? next : -1;
+                });
+                mapRate = Math.max(mapRate, input.length() / 1e6 / ((System.nanoTime() - start) / 1e9));
+                start = System.nanoTime();
+                int denseMatches = countMatches(compiled, input, compiled::step);
+                denseRate = Math.max(denseRate, input.length() / 1e6 / ((System.nanoTime() - start) / 1e9));
+                if (mapMatches != denseMatches) {
+                    throw new IllegalStateException("Layouts disagree on " + pattern[0]);
+                }
+            }
+            System.out.printf("| %-10s | %-5d | %-5d | %-7d | %-11d | %-11d | %-11d | %-7.1f | %-7.1f |\n", pattern[0],
+                    chars.size(), compiled.numClasses, states, perCharBytes, classBytes, mapBytes, mapRate, denseRate);
+        }
+        System.out.println("+------------+-------+-------+---------+-------------+-------------+-------------+---------+---------+");
+        System.out.println("Per char: one column per distinct character plus one for the rest, as before classes were merged.");
+    }
 
-    //     displayNFA();
-    //     displayDFA();
+    private interface Step {
+        int next(int state, char c);
+    }
 
-    //     scanner.close();
-    // }
-}
\ No newline at end of file
+    private static int countMatches(CompiledPattern pattern, String input, Step step) {
+        int matches = 0;
+        int pos = 0;
+        while (pos <= input.length()) {
+            int state = pattern.start;
+            int end = pattern.accepting[state] ? pos : -1;
+            for (int i = pos; i < input.length(); i++) {
+                state = step.next(state, input.charAt(i));
+                if (state < 0) {
+                    break;
+                }
+                if (pattern.accepting[state]) {
+                    end = i + 1;
+                }
+            }
+            if (end < 0) {
+                pos++;
+                continue;
+            }
+            matches++;
+            pos = end > pos ? end : pos + 1;
+        }
+        return matches;
+    }
+}
@@ -0,0 +1,106 @@
+
+import bhaichara.bench.Phases;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Bridges the benchmarks, which JMH needs in a named package, to the compiler in the unnamed one
+public class BhaiCharaPhases implements Phases {
+
+    @Override
+    public String program(int lines) {
+        return BhaiCharaIncremental.generate(lines);
+    }
+
+    @Override
+    public Object lex(CharSequence source) {
+        return BhaiCharaParser.lex(source);
+    }
+
+    @Override
+    public Object parse(Object tokens) {
+        return BhaiCharaParser.parseTokens((BhaiCharaParser.TokenStream) tokens);
+    }
+
+    @Override
+    public Object compile(CharSequence source) {
+        return BhaiCharaParser.compile(source);
+    }
+
+    @Override
+    public int declare(String[] names, int scopeSize) {
+        BhaiCharaParser.SymbolTable table = new BhaiCharaParser.SymbolTable(new ArrayList<>());
+        for (int i = 0; i < names.length; i++) {
+            if (i > 0 && i % scopeSize == 0) {
+                table.enterScope();
+            }
+            table.addEntry(names[i], "bint", i + 1);
+        }
+        return table.count;
+    }
+
+    @Override
+    public String postfix(String regex) {
+        return RegexToDFA.regexToPostfix(regex);
+    }
+
+    @Override
+    public Object nfa(String postfix) {
+        RegexToDFA builder = new RegexToDFA();
+        builder.buildNFA(postfix);
+        return builder;
+    }
+
+    @Override
+    public Object dfa(Object nfa) {
+        RegexToDFA builder = (RegexToDFA) nfa;
+        builder.buildDFA();
+        return builder;
+    }
+
+    @Override
+    public Object compileRegex(String regex) {
+        return RegexToDFA.compile(regex);
+    }
+
+    @Override
+    public Object compileLazy(String regex, long memoryLimit) {
+        return RegexToDFA.compileLazy(regex, memoryLimit);
+    }
+
+    @Override
+    public Object compileSet(List<String> regexes) {
+        return RegexToDFA.compileSet(regexes, true);
+    }
+
+    @Override
+    public int countMatches(Object pattern, CharSequence text) {
+        RegexToDFA.CompiledPattern compiled = (RegexToDFA.CompiledPattern) pattern;
+        int count = 0;
+        for (RegexToDFA.Match match = compiled.find(text, 0); match != null;
+                match = compiled.find(text, (int) Math.max(match.end, match.start + 1))) {
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public int countLazyMatches(Object pattern, CharSequence[] lines) {
+        RegexToDFA.LazyDFA lazy = (RegexToDFA.LazyDFA) pattern;
+        int count = 0;
+        for (CharSequence line : lines) {
+            count += lazy.matches(line) ? 1 : 0;
+        }
+        return count;
+    }
+
+    @Override
+    public int countSetMatches(Object set, CharSequence[] lines) {
+        RegexToDFA.PatternSet patterns = (RegexToDFA.PatternSet) set;
+        int count = 0;
+        for (CharSequence line : lines) {
+            count += patterns.match(line).cardinality();
+        }
+        return count;
+    }
+}
@@ -0,0 +1,63 @@
+package bhaichara.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Each step of regex compilation on its own: postfix conversion, Thompson construction, subset
+// construction from an NFA built in setup, and the whole pipeline including minimization. The
+// exp* parameters are (a|b)*a(a|b){n}, whose DFA doubles in size with every step of n.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AutomatonBenchmark {
+
+    @Param({"number", "ipv4", "email", "exp8", "exp12", "exp16"})
+    String pattern;
+
+    String regex;
+    String postfix;
+    Object nfa;
+
+    @Setup
+    public void setup() {
+        switch (pattern) {
+            case "number":
+                regex = Corpus.LOG_PATTERNS[0];
+                break;
+            case "ipv4":
+                regex = Corpus.LOG_PATTERNS[3];
+                break;
+            case "email":
+                regex = Corpus.LOG_PATTERNS[4];
+                break;
+            default:
+                regex = Corpus.exponentialRegex(Integer.parseInt(pattern.substring(3)));
+        }
+        postfix = Phases.INSTANCE.postfix(regex);
+        nfa = Phases.INSTANCE.nfa(postfix);
+    }
+
+    @Benchmark
+    public String postfix() {
+        return Phases.INSTANCE.postfix(regex);
+    }
+
+    @Benchmark
+    public Object buildNFA() {
+        return Phases.INSTANCE.nfa(postfix);
+    }
+
+    @Benchmark
+    public Object buildDFA() {
+        return Phases.INSTANCE.dfa(nfa);
+    }
+
+    @Benchmark
+    public Object compile() {
+        return Phases.INSTANCE.compileRegex(regex);
+    }
+}
@@ -0,0 +1,50 @@
+package bhaichara.bench;
+
+import java.util.Random;
+
+// Synthetic inputs, generated from fixed seeds so every run and every fork measures the same text
+final class Corpus {
+
+    private static final String[] LEVELS = {"ERROR", "WARN", "INFO", "DEBUG"};
+
+    // Patterns a log scanner would run, in the extended syntax
+    static final String[] LOG_PATTERNS = {
+            "\\d+",
+            "[a-z]\\w*",
+            "\\d{4}-\\d\\d-\\d\\d",
+            "\\d{1,3}(\\.\\d{1,3}){3}",
+            "\\w+@[a-z]+\\.(com|org|net)",
+            "ERROR|WARN|INFO|DEBUG",
+    };
+
+    private Corpus() {
+    }
+
+    static String[] logLines(int count) {
+        Random random = new Random(42);
+        String[] lines = new String[count];
+        for (int i = 0; i < count; i++) {
+            lines[i] = "2024-0" + (1 + random.nextInt(9)) + "-" + (10 + random.nextInt(18)) + " "
+                    + LEVELS[random.nextInt(LEVELS.length)] + " user_" + random.nextInt(1000)
+                    + "@host" + random.nextInt(50) + ".com from 10.0." + random.nextInt(256) + "."
+                    + random.nextInt(256) + " took " + random.nextInt(5000) + "ms";
+        }
+        return lines;
+    }
+
+    // Distinct names in the language's identifier syntax, so the symbol table sees what the parser
+    // would hand it
+    static String[] identifiers(int count) {
+        String[] names = new String[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = "V" + Integer.toString(i, 36).toUpperCase();
+        }
+        return names;
+    }
+
+    // (a|b)*a(a|b){n}: the (n+1)th symbol from the end is an 'a'. The NFA is linear in n, while
+    // the DFA has to remember the last n+1 symbols and so needs 2^(n+1) states.
+    static String exponentialRegex(int n) {
+        return "(a|b)*a(a|b){" + n + "}";
+    }
+}
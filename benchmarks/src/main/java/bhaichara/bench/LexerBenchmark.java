@@ -0,0 +1,30 @@
+package bhaichara.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Tokenizing synthetic programs of increasing size
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LexerBenchmark {
+
+    @Param({"100", "10000", "100000"})
+    int lines;
+
+    String source;
+
+    @Setup
+    public void setup() {
+        source = Phases.INSTANCE.program(lines);
+    }
+
+    @Benchmark
+    public Object tokenize() {
+        return Phases.INSTANCE.lex(source);
+    }
+}
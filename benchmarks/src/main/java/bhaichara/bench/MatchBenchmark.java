@@ -0,0 +1,68 @@
+package bhaichara.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+// Matching over synthetic log lines with patterns compiled in setup: searching the whole text
+// with each compiled DFA, whole-line matches through a lazy DFA, and all patterns at once as a
+// set. chars is reported as a rate, in characters scanned per second.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MatchBenchmark {
+
+    @Param({"1000", "100000"})
+    int lines;
+
+    CharSequence[] logLines;
+    String text;
+    Object[] compiled;
+    Object lazy;
+    Object set;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Throughput {
+
+        public long chars;
+    }
+
+    @Setup
+    public void setup() {
+        logLines = Corpus.logLines(lines);
+        text = String.join("\n", logLines);
+        compiled = new Object[Corpus.LOG_PATTERNS.length];
+        for (int i = 0; i < compiled.length; i++) {
+            compiled[i] = Phases.INSTANCE.compileRegex(Corpus.LOG_PATTERNS[i]);
+        }
+        lazy = Phases.INSTANCE.compileLazy(".*" + Corpus.LOG_PATTERNS[4] + ".*", 1 << 20);
+        set = Phases.INSTANCE.compileSet(Arrays.asList(Corpus.LOG_PATTERNS));
+    }
+
+    @Benchmark
+    public int compiledFind(Throughput throughput) {
+        int matches = 0;
+        for (Object pattern : compiled) {
+            matches += Phases.INSTANCE.countMatches(pattern, text);
+        }
+        throughput.chars += (long) text.length() * compiled.length;
+        return matches;
+    }
+
+    @Benchmark
+    public int lazyLines(Throughput throughput) {
+        throughput.chars += text.length();
+        return Phases.INSTANCE.countLazyMatches(lazy, logLines);
+    }
+
+    @Benchmark
+    public int patternSet(Throughput throughput) {
+        throughput.chars += text.length();
+        return Phases.INSTANCE.countSetMatches(set, logLines);
+    }
+}
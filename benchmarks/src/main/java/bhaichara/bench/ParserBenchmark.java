@@ -0,0 +1,46 @@
+package bhaichara.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Parsing on its own over tokens lexed once in setup, the whole front end, and symbol table
+// insertion with nested scopes
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+
+    @Param({"100", "10000", "100000"})
+    int lines;
+
+    String source;
+    Object tokens;
+    String[] names;
+
+    @Setup
+    public void setup() {
+        source = Phases.INSTANCE.program(lines);
+        tokens = Phases.INSTANCE.lex(source);
+        // About one declaration per line, as in the generated programs
+        names = Corpus.identifiers(lines);
+    }
+
+    @Benchmark
+    public Object parse() {
+        return Phases.INSTANCE.parse(tokens);
+    }
+
+    @Benchmark
+    public Object compile() {
+        return Phases.INSTANCE.compile(source);
+    }
+
+    @Benchmark
+    public int symbolTable() {
+        return Phases.INSTANCE.declare(names, 8);
+    }
+}
@@ -0,0 +1,55 @@
+package bhaichara.bench;
+
+import java.util.List;
+
+// The compiler phases the benchmarks measure. JMH only runs benchmarks declared in a named
+// package, and the compiler lives in the unnamed package, which no named package can refer to;
+// BhaiCharaPhases implements this from the unnamed package and is loaded by name. Results are
+// returned as Object for the benchmarks to hand to a Blackhole or back to the next phase.
+public interface Phases {
+
+    Phases INSTANCE = load();
+
+    // A well-formed program of about this many lines: declarations, functions, loops and calls
+    String program(int lines);
+
+    Object lex(CharSequence source);
+
+    Object parse(Object tokens);
+
+    Object compile(CharSequence source);
+
+    // Declares every name in a fresh symbol table, scopeSize names per nested scope, and returns
+    // how many entries were made
+    int declare(String[] names, int scopeSize);
+
+    String postfix(String regex);
+
+    Object nfa(String postfix);
+
+    // Runs subset construction over an NFA from nfa(); the NFA is left as it was
+    Object dfa(Object nfa);
+
+    Object compileRegex(String regex);
+
+    Object compileLazy(String regex, long memoryLimit);
+
+    Object compileSet(List<String> regexes);
+
+    // Leftmost-longest matches of a compiled pattern in the text
+    int countMatches(Object pattern, CharSequence text);
+
+    // Lines that a lazy DFA matches whole
+    int countLazyMatches(Object pattern, CharSequence[] lines);
+
+    // Pattern hits over all lines, for a set whose patterns may match anywhere in a line
+    int countSetMatches(Object set, CharSequence[] lines);
+
+    private static Phases load() {
+        try {
+            return (Phases) Class.forName("BhaiCharaPhases").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Compiler classes are not on the class path", e);
+        }
+    }
+}
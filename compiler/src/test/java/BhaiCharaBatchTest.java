@@ -0,0 +1,40 @@
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// A file the compiler cannot handle is reported against that file, and the rest still compile,
+// long valid ones included
+class BhaiCharaBatchTest {
+
+    @Test
+    void oneBadFileDoesNotStopTheBatch(@TempDir Path root) throws IOException {
+        Files.writeString(root.resolve("a.bhai"), "bint X = 1;\ndekhana(X);\n");
+        Files.writeString(root.resolve("b.bhai"), "{".repeat(100_000) + "}".repeat(100_000));
+        Files.writeString(root.resolve("c.bhai"), "bint Y = 2;\n");
+        // Valid however long, so it must come back clean rather than as an internal error
+        StringBuilder chain = new StringBuilder("bint Z = 0;\nbhaiagar (Z == 0) { dekhana(0); }\n");
+        for (int i = 1; i <= 5000; i++) {
+            chain.append("agarwarna (Z == ").append(i).append(") { dekhana(").append(i).append("); }\n");
+        }
+        Files.writeString(root.resolve("d.bhai"), chain);
+
+        List<Path> files = BhaiCharaBatch.findSources(root);
+        BhaiCharaBatch.FileResult[] results = BhaiCharaBatch.compileAll(files, 2);
+
+        assertEquals(4, results.length);
+        assertTrue(results[0].errors.isEmpty(), results[0].errors::toString);
+        assertFalse(results[1].errors.isEmpty());
+        assertTrue(results[2].errors.isEmpty(), results[2].errors::toString);
+        assertTrue(results[3].errors.isEmpty(), results[3].errors::toString);
+        assertEquals(5000 * 13 + 18, results[3].tokenCount);
+    }
+}
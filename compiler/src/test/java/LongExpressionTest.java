@@ -0,0 +1,93 @@
+
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+// A long chain of left-associative operators, or of else-ifs, parses into a tree as deep as the
+// chain, which code generation must walk without recursing once per link
+class LongExpressionTest {
+
+    private static final int TERMS = 10_000;
+
+    // Takes the branch next to last, so every condition but one is tested and fails
+    private static String elseIfChain(int clauses) {
+        StringBuilder program = new StringBuilder("bint X = ").append(clauses - 2).append(";\n")
+                .append("bhaiagar (X == 0) { dekhana(0); }\n");
+        for (int i = 1; i < clauses; i++) {
+            program.append("agarwarna (X == ").append(i).append(") { dekhana(").append(i).append("); }\n");
+        }
+        return program.append("bhaiwarna { dekhana(X); }\n").toString();
+    }
+
+    private static BhaiCharaParser.CompilationUnit parse(String source) {
+        BhaiCharaParser.CompilationUnit unit = BhaiCharaParser.compile(source);
+        assertEquals(List.of(), unit.errors);
+        return unit;
+    }
+
+    private static String runOnVm(String source) throws IOException {
+        BhaiCharaParser.CompilationUnit unit = parse(source);
+        BhaiCharaVM.Program program = BhaiCharaVM.compile(unit);
+        assertEquals(List.of(), unit.errors);
+        StringWriter out = new StringWriter();
+        BhaiCharaVM.run(program, new BufferedReader(new StringReader("")), out);
+        return out.toString().trim();
+    }
+
+    private static String runOnJit(String source) throws IOException {
+        BhaiCharaParser.CompilationUnit unit = parse(source);
+        BhaiCharaVM.compile(unit);
+        assertEquals(List.of(), unit.errors);
+        StringWriter out = new StringWriter();
+        BhaiCharaJit.compile(unit).run(new BufferedReader(new StringReader("")), out);
+        return out.toString().trim();
+    }
+
+    @Test
+    void longSumOnVm() throws IOException {
+        String sum = "1" + " + 1".repeat(TERMS - 1);
+        assertEquals(String.valueOf(TERMS), runOnVm("bint X = " + sum + ";\ndekhana(X);\n"));
+    }
+
+    @Test
+    void longMixedChainOnVm() throws IOException {
+        String chain = "jamaIlfaz S = \"n\"" + " + 1 + 2.5".repeat(TERMS / 2) + ";\ndekhana(S == S);\n";
+        assertEquals("true", runOnVm(chain));
+    }
+
+    @Test
+    void longElseIfChainOnVm() throws IOException {
+        assertEquals(String.valueOf(TERMS - 2), runOnVm(elseIfChain(TERMS)));
+    }
+
+    @Test
+    void longSumOnJit() throws IOException {
+        String sum = "1" + " + 1".repeat(TERMS - 1);
+        assertEquals(String.valueOf(TERMS), runOnJit("bint X = " + sum + ";\ndekhana(X);\n"));
+    }
+
+    @Test
+    void longComparisonChainOnJit() throws IOException {
+        // Each comparison yields 0 or 1, so the chain stays true: ((1 == 1) == 1) == 1 ... Every
+        // comparison branches, so a fifth of TERMS keeps both copies within one 64 KB method.
+        String chain = "1" + " == 1".repeat(TERMS / 5 - 1);
+        assertEquals("true\n2", runOnJit("bbool B = " + chain + ";\ndekhana(B);\nbhaiagar (" + chain + ") { dekhana(2); }\n"));
+    }
+
+    @Test
+    void longElseIfChainOnJit() throws IOException {
+        assertEquals("998", runOnJit(elseIfChain(1000)));
+        // Longer chains outgrow the 16-bit branch offsets, which must be reported as too large for
+        // one method, so that the caller falls back to the interpreter, rather than overflow the stack
+        BhaiCharaParser.CompilationUnit unit = parse(elseIfChain(TERMS));
+        BhaiCharaVM.compile(unit);
+        assertThrows(BhaiCharaJit.CodeTooLargeException.class, () -> BhaiCharaJit.compile(unit));
+    }
+}
@@ -0,0 +1,58 @@
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Hopcroft minimization must not change the language: the minimized and raw subset-construction
+// DFAs of random regexes agree on random strings, and minimizing never adds states
+class MinimizationPropertyTest {
+
+    private static String randomRegex(Random random, int depth) {
+        switch (depth > 3 ? random.nextInt(2) : random.nextInt(7)) {
+            case 0:
+                return String.valueOf("abc".charAt(random.nextInt(3)));
+            case 1:
+                return random.nextBoolean() ? "[ab]" : "[^a]";
+            case 2:
+                return "(" + randomRegex(random, depth + 1) + "|" + randomRegex(random, depth + 1) + ")";
+            case 3:
+                return "(" + randomRegex(random, depth + 1) + ")*";
+            case 4:
+                return "(" + randomRegex(random, depth + 1) + ")" + "+?".charAt(random.nextInt(2));
+            case 5:
+                return "(" + randomRegex(random, depth + 1) + "){1,3}";
+            default:
+                return randomRegex(random, depth + 1) + randomRegex(random, depth + 1);
+        }
+    }
+
+    @Test
+    void minimizedAcceptsTheSameLanguage() {
+        Random random = new Random(7);
+        for (int round = 0; round < 3000; round++) {
+            String regex = randomRegex(random, 0);
+            RegexToDFA.CompiledPattern raw = RegexToDFA.compileUnminimized(regex);
+            RegexToDFA.CompiledPattern minimized = RegexToDFA.compile(regex);
+            assertTrue(minimized.accepting.length <= raw.accepting.length, regex);
+            for (int i = 0; i < 100; i++) {
+                StringBuilder input = new StringBuilder();
+                int length = random.nextInt(10);
+                for (int j = 0; j < length; j++) {
+                    input.append("abcd".charAt(random.nextInt(4)));
+                }
+                String text = input.toString();
+                assertEquals(raw.matches(text), minimized.matches(text), () -> regex + " on " + text);
+            }
+        }
+    }
+
+    @Test
+    void mergesEquivalentStates() {
+        // The textbook example: subset construction gives 5 states, the minimal DFA has 4
+        assertEquals(5, RegexToDFA.compileUnminimized("(a|b)*abb").accepting.length);
+        assertEquals(4, RegexToDFA.compile("(a|b)*abb").accepting.length);
+    }
+}
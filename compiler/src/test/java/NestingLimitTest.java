@@ -0,0 +1,57 @@
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// Nesting past the limit is one syntax error, recovered from like any other, rather than a
+// StackOverflowError out of the recursive descent
+class NestingLimitTest {
+
+    private static final String TOO_DEEP = "Error at line 1: Nesting too deep: more than "
+            + BhaiCharaParser.MAX_NESTING + " levels";
+
+    private static void assertOnlyNestingError(String source) {
+        // The declaration after the deep statement must still be parsed, so Z resolves
+        String program = source + "\nbint Z = 1;\nZ = Z + 1;\n";
+        assertEquals(List.of(TOO_DEEP), BhaiCharaParser.compile(program).errors);
+        assertEquals(List.of(TOO_DEEP), BhaiCharaParser.check(program, false).errors);
+        assertEquals(List.of(TOO_DEEP), BhaiCharaParser.check(program, true).errors);
+    }
+
+    @Test
+    void deepBlocks() {
+        assertOnlyNestingError("{".repeat(5000) + "}".repeat(5000));
+    }
+
+    @Test
+    void deepParentheses() {
+        assertOnlyNestingError("bint X = " + "(".repeat(5000) + "1" + ")".repeat(5000) + ";");
+    }
+
+    @Test
+    void longUnaryChain() {
+        assertOnlyNestingError("bint X = " + "-".repeat(20_000) + "1;");
+    }
+
+    @Test
+    void nestingUpToTheLimitIsFine() {
+        int levels = BhaiCharaParser.MAX_NESTING;
+        String program = "bint X = " + "-(".repeat(levels / 2) + "1" + ")".repeat(levels / 2) + ";\n"
+                + "{".repeat(levels) + "dekhana(X);" + "}".repeat(levels);
+        assertEquals(List.of(), BhaiCharaParser.compile(program).errors);
+    }
+
+    @Test
+    void longElseIfChainIsNotNesting() {
+        StringBuilder program = new StringBuilder("bint X = 0;\nbhaiagar (X == 0) { dekhana(0); }\n");
+        for (int i = 1; i <= 20_000; i++) {
+            program.append("agarwarna (X == ").append(i).append(") { dekhana(").append(i).append("); }\n");
+        }
+        program.append("bhaiwarna { dekhana(X); }\n");
+        assertEquals(List.of(), BhaiCharaParser.compile(program).errors);
+        assertEquals(List.of(), BhaiCharaParser.check(program, false).errors);
+        assertEquals(List.of(), BhaiCharaParser.check(program, true).errors);
+    }
+}
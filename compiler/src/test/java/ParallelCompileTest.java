@@ -0,0 +1,110 @@
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// Compiles share no state: thousands of programs and patterns compiled on a thread pool give
+// exactly what the same compiles give one after another
+class ParallelCompileTest {
+
+    private static final int COMPILES = 4000;
+
+    // Generated programs of several sizes, some with chars deleted so that errors come out too
+    private static List<String> programs(Random random) {
+        List<String> programs = new ArrayList<>();
+        for (int i = 0; i < COMPILES; i++) {
+            StringBuilder program = new StringBuilder(BhaiCharaIncremental.generate(1 + random.nextInt(60)));
+            for (int cuts = random.nextInt(4); cuts > 0 && program.length() > 0; cuts--) {
+                program.deleteCharAt(random.nextInt(program.length()));
+            }
+            programs.add(program.toString());
+        }
+        return programs;
+    }
+
+    private static List<String> patterns(Random random) {
+        String[] atoms = {"a", "b", "[a-c]", "[^b]", "(a|bc)", "(ab)*", "c+", "b?", "a{1,3}"};
+        List<String> patterns = new ArrayList<>();
+        for (int i = 0; i < COMPILES; i++) {
+            StringBuilder regex = new StringBuilder();
+            for (int atom = 1 + random.nextInt(5); atom > 0; atom--) {
+                regex.append(atoms[random.nextInt(atoms.length)]);
+            }
+            patterns.add(regex.toString());
+        }
+        return patterns;
+    }
+
+    private static String describe(BhaiCharaParser.CompilationUnit unit) {
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < unit.tokens.size(); i++) {
+            out.append(unit.tokens.kind(i)).append('|').append(unit.tokens.text(i)).append('|')
+                    .append(unit.tokens.line(i)).append('\n');
+        }
+        BhaiCharaParser.Ast ast = unit.ast;
+        out.append(ast.root).append(Arrays.toString(Arrays.copyOf(ast.kinds, ast.size)))
+                .append(Arrays.toString(Arrays.copyOf(ast.tokens, ast.size)))
+                .append(Arrays.toString(Arrays.copyOf(ast.firstChild, ast.size)))
+                .append(Arrays.toString(Arrays.copyOf(ast.nextSibling, ast.size)))
+                .append(Arrays.toString(Arrays.copyOf(ast.symbols, ast.size))).append('\n');
+        for (BhaiCharaParser.SymbolTableEntry entry : unit.symbolTable.entries) {
+            out.append(entry.id).append(' ').append(entry.name).append(' ').append(entry.type).append(' ')
+                    .append(entry.declaredLine).append(' ').append(entry.scope).append('\n');
+        }
+        return out.append(unit.errors).toString();
+    }
+
+    private static String describe(String regex) {
+        RegexToDFA.CompiledPattern pattern = RegexToDFA.compile(regex);
+        return Arrays.toString(pattern.classMap) + Arrays.toString(pattern.transitions)
+                + Arrays.toString(pattern.accepting) + pattern.start
+                + pattern.findAll("abcabcaabbccabacbcbacaaab");
+    }
+
+    private static List<String> parallel(List<String> inputs, Function<String, String> compile)
+            throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> futures = new ArrayList<>();
+            for (String input : inputs) {
+                futures.add(pool.submit(() -> compile.apply(input)));
+            }
+            List<String> results = new ArrayList<>();
+            for (Future<String> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void parallelProgramsMatchSerial() throws Exception {
+        List<String> programs = programs(new Random(3));
+        List<String> serial = new ArrayList<>();
+        for (String program : programs) {
+            serial.add(describe(BhaiCharaParser.compile(program)));
+        }
+        assertEquals(serial, parallel(programs, program -> describe(BhaiCharaParser.compile(program))));
+    }
+
+    @Test
+    void parallelPatternsMatchSerial() throws Exception {
+        List<String> patterns = patterns(new Random(5));
+        List<String> serial = new ArrayList<>();
+        for (String regex : patterns) {
+            serial.add(describe(regex));
+        }
+        assertEquals(serial, parallel(patterns, ParallelCompileTest::describe));
+    }
+}
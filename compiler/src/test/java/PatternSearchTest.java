@@ -0,0 +1,119 @@
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+// The single-pass search against the obvious one: the longest anchored match tried at every
+// offset in turn, on random regexes and inputs, for strings and for streams read a few chars at a time
+class PatternSearchTest {
+
+    private static String randomRegex(Random random, int depth) {
+        switch (depth > 3 ? random.nextInt(2) : random.nextInt(7)) {
+            case 0:
+                return String.valueOf("abc".charAt(random.nextInt(3)));
+            case 1:
+                return random.nextBoolean() ? "[ab]" : "[^a]";
+            case 2:
+                return "(" + randomRegex(random, depth + 1) + "|" + randomRegex(random, depth + 1) + ")";
+            case 3:
+                return "(" + randomRegex(random, depth + 1) + ")*";
+            case 4:
+                return "(" + randomRegex(random, depth + 1) + ")" + "+?".charAt(random.nextInt(2));
+            case 5:
+                return "(" + randomRegex(random, depth + 1) + "){1,3}";
+            default:
+                return randomRegex(random, depth + 1) + randomRegex(random, depth + 1);
+        }
+    }
+
+    private static List<String> everyOffset(RegexToDFA.CompiledPattern pattern, String input) {
+        List<String> matches = new ArrayList<>();
+        int pos = 0;
+        while (pos <= input.length()) {
+            int end = -1;
+            for (int i = pos; i <= input.length(); i++) {
+                if (pattern.matches(input.substring(pos, i))) {
+                    end = i;
+                }
+            }
+            if (end < 0) {
+                pos++;
+                continue;
+            }
+            matches.add("[" + pos + ", " + end + ") " + input.substring(pos, end));
+            pos = end > pos ? end : pos + 1;
+        }
+        return matches;
+    }
+
+    private static List<String> strings(List<RegexToDFA.Match> matches) {
+        List<String> out = new ArrayList<>();
+        for (RegexToDFA.Match match : matches) {
+            out.add(match.toString());
+        }
+        return out;
+    }
+
+    // Hands out at most three chars per read, so matches straddle refills
+    private static Reader trickle(String input, Random random) {
+        return new StringReader(input) {
+            @Override
+            public int read(char[] buffer, int offset, int length) throws IOException {
+                return super.read(buffer, offset, Math.min(length, 1 + random.nextInt(3)));
+            }
+        };
+    }
+
+    @Test
+    void agreesWithEveryOffsetSearch() throws IOException {
+        Random random = new Random(11);
+        for (int round = 0; round < 2000; round++) {
+            String regex = randomRegex(random, 0);
+            RegexToDFA.CompiledPattern pattern = RegexToDFA.compile(regex);
+            for (int i = 0; i < 20; i++) {
+                StringBuilder input = new StringBuilder();
+                int length = random.nextInt(16);
+                for (int j = 0; j < length; j++) {
+                    input.append("abcd".charAt(random.nextInt(4)));
+                }
+                String text = input.toString();
+                List<String> expected = everyOffset(pattern, text);
+                assertEquals(expected, strings(pattern.findAll(text)), () -> regex + " on " + text);
+                List<RegexToDFA.Match> streamed = new ArrayList<>();
+                pattern.findAll(trickle(text, random), streamed::add);
+                assertEquals(expected, strings(streamed), () -> regex + " streamed on " + text);
+                RegexToDFA.Match first = pattern.find(text);
+                assertEquals(expected.isEmpty() ? null : expected.get(0), first == null ? null : first.toString());
+            }
+        }
+    }
+
+    @Test
+    void prefersTheLeftmostStartOverTheEarliestEnd() {
+        assertEquals("[0, 4) abcd", RegexToDFA.compile("abcd|c").find("abcd").toString());
+        assertEquals("[1, 3) bc", RegexToDFA.compile("b|bc|c").find("abc").toString());
+        assertEquals("[1, 1) ", RegexToDFA.compile("x*").find("abx", 1).toString());
+    }
+
+    @Test
+    void failedSearchIsLinear() {
+        String input = "a".repeat(200_000);
+        assertTimeoutPreemptively(Duration.ofSeconds(2), () -> {
+            assertNull(RegexToDFA.compile("a*b").find(input));
+            assertEquals(List.of(), RegexToDFA.compile("(a|b)*c").findAll(input));
+            List<RegexToDFA.Match> streamed = new ArrayList<>();
+            RegexToDFA.compile("a*b").findAll(new StringReader(input), streamed::add);
+            assertEquals(List.of(), streamed);
+        });
+    }
+}
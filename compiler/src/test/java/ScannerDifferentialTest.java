@@ -0,0 +1,106 @@
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// The character scanner against the named-group regex tokenizer it replaced, on random programs
+// built from fragments of every token kind
+class ScannerDifferentialTest {
+
+    private static final String[] KEYWORDS = {
+            "bhaiagar", "agarwarna", "bhaiwarna", "tillWhenBro", "dekhana", "inputdo",
+            "bbool", "bint", "bfloat", "bchar", "jamaIlfaz", "chaleye"
+    };
+    private static final String[] KINDS = {
+            "IF", "ELSE_IF", "ELSE", "LOOP", "PRINT", "INPUT",
+            "BOOL_TYPE", "INT_TYPE", "FLOAT_TYPE", "CHAR_TYPE", "STRING_TYPE", "FUNCTION"
+    };
+    private static final Pattern TOKEN = Pattern.compile(
+            "(?<COMMENT>\\?\\?.*|<<.*?>>)|"
+            + "(?<KEYWORD>" + String.join("|", KEYWORDS) + ")|"
+            + "(?<IDENTIFIER>[A-Z][A-Z0-9]*)|"
+            + "(?<NUMBER>\\d+(\\.\\d+)?)|"
+            + "(?<STRING>\"[^\"]*\")|"
+            + "(?<OPERATOR>[+\\-*/%=(){}<>;])|"
+            + "(?<INVALID>[a-z][a-z0-9]*)");
+
+    // Fragments are joined with spaces, because the language has since gained two-character
+    // operators that the old tokenizer split in two. Comments that span lines are new, so they
+    // are checked on their own below.
+    private static final String[] FRAGMENTS = {
+            "bint", "bhaiagar", "tillWhenBro", "jamaIlfaz", "chaleyeZ", "X", "AB12", "x", "abc",
+            "12", "3.14", "3.", "\"hi\"", "\"un", "??c", "<<c>>", "(", ")", "{", "}",
+            ";", "=", "+", "*", "<", ">", "\n", "\t", ".", "?"
+    };
+
+    // The old tokenizer, one line at a time: tokens as "KIND|text|line", then the errors
+    private static List<String> regexTokenize(String input) {
+        List<String> out = new ArrayList<>();
+        List<String> errors = new ArrayList<>();
+        int lineNumber = 1;
+        for (String line : input.split("\n")) {
+            Matcher matcher = TOKEN.matcher(line);
+            while (matcher.find()) {
+                if (matcher.group("COMMENT") != null) {
+                    continue;
+                }
+                if (matcher.group("KEYWORD") != null) {
+                    String keyword = matcher.group("KEYWORD");
+                    out.add(KINDS[List.of(KEYWORDS).indexOf(keyword)] + "|" + keyword + "|" + lineNumber);
+                } else if (matcher.group("INVALID") != null) {
+                    errors.add("Error at line " + lineNumber + ": Invalid identifier '"
+                            + matcher.group("INVALID") + "'. Must start with capital letter.");
+                } else {
+                    for (String kind : new String[]{"IDENTIFIER", "NUMBER", "STRING", "OPERATOR"}) {
+                        if (matcher.group(kind) != null) {
+                            out.add(kind + "|" + matcher.group(kind) + "|" + lineNumber);
+                        }
+                    }
+                }
+            }
+            lineNumber++;
+        }
+        out.addAll(errors);
+        return out;
+    }
+
+    private static List<String> scan(String input) {
+        List<String> errors = new ArrayList<>();
+        BhaiCharaParser.Lexer lexer = new BhaiCharaParser.Lexer(input, errors);
+        BhaiCharaParser.TokenStream tokens = new BhaiCharaParser.TokenStream(input, new BhaiCharaParser.SymbolPool());
+        lexer.out = tokens;
+        lexer.next(Integer.MAX_VALUE);
+        List<String> out = new ArrayList<>();
+        for (int i = 0; i < tokens.size(); i++) {
+            out.add(tokens.kind(i) + "|" + tokens.text(i) + "|" + tokens.line(i));
+        }
+        out.addAll(errors);
+        return out;
+    }
+
+    @Test
+    void matchesRegexTokenizer() {
+        Random random = new Random(42);
+        for (int round = 0; round < 50_000; round++) {
+            StringBuilder input = new StringBuilder();
+            int count = random.nextInt(20);
+            for (int i = 0; i < count; i++) {
+                input.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]).append(' ');
+            }
+            String source = input.toString();
+            assertEquals(regexTokenize(source), scan(source), () -> "input: " + source);
+        }
+    }
+
+    @Test
+    void blockCommentsSpanLines() {
+        assertEquals(List.of("INT_TYPE|bint|3", "IDENTIFIER|X|3", "OPERATOR|;|3"), scan("<< one\ntwo >>\n<<x>>bint X;"));
+        assertEquals(List.of("IDENTIFIER|A|1", "Error at line 1: Unclosed comment '<<'"), scan("A << open\nB"));
+    }
+}
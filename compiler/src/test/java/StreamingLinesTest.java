@@ -0,0 +1,48 @@
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// check() streams tokens through a bounded window, and must still report an unclosed block on its
+// keyword's line when a long condition or parameter list has pushed the keyword out of the window
+class StreamingLinesTest {
+
+    // One term per line, so a token that takes over the keyword's slot carries another line
+    private static final String LONG_SUM = "X" + "\n+ X".repeat(2000);
+
+    private static void assertSameErrors(String program, String expected) {
+        assertEquals(List.of(expected), BhaiCharaParser.compile(program).errors);
+        assertEquals(List.of(expected), BhaiCharaParser.check(program, false).errors);
+        assertEquals(List.of(expected), BhaiCharaParser.check(program, true).errors);
+    }
+
+    @Test
+    void unclosedIfAfterLongCondition() {
+        assertSameErrors("bint X = 1;\nbhaiagar (" + LONG_SUM + " > 0) {\n" + "dekhana(X);\n".repeat(30),
+                "Error at line 2: Unclosed IF block");
+    }
+
+    @Test
+    void unclosedElseIfAfterLongCondition() {
+        assertSameErrors("bint X = 1;\nbhaiagar (X == 0) { dekhana(0); }\nagarwarna (" + LONG_SUM + " > 0) {\n"
+                + "dekhana(X);\n".repeat(30), "Error at line 3: Unclosed IF block");
+    }
+
+    @Test
+    void unclosedLoopAfterLongCondition() {
+        assertSameErrors("bint X = 1;\ntillWhenBro (" + LONG_SUM + " < 0) {\n" + "X = X + 1;\n".repeat(30),
+                "Error at line 2: Unclosed LOOP block");
+    }
+
+    @Test
+    void unclosedFunctionAfterLongParameterList() {
+        StringBuilder program = new StringBuilder("bint X = 1;\nchaleye F(bint P0");
+        for (int i = 1; i < 1000; i++) {
+            program.append(",\nbint P").append(i);
+        }
+        program.append(") {\n").append("dekhana(P0);\n".repeat(30));
+        assertSameErrors(program.toString(), "Error at line 2: Unclosed FUNCTION block");
+    }
+}